@@ -36,6 +36,14 @@ public class MusicEvents extends BroadcastReceiver {
     public static final String PLAYBACK_METADATA = "playback-metadata-received";
     public static final String PLAYBACK_ERROR = "playback-error";
     public static final String PLAYBACK_CACHED = "playback-cached";
+    public static final String NETWORK_STATS = "network-stats";
+
+    // Download Events
+    public static final String DOWNLOAD_STATE = "download-state";
+    public static final String DOWNLOAD_PROGRESS = "download-progress";
+
+    // Browse Events
+    public static final String BROWSE_LOAD_CHILDREN = "browse-load-children";
 
     private final ReactContext reactContext;
 
@@ -6,6 +6,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
@@ -15,10 +16,14 @@ import com.google.android.exoplayer2.C;
 import com.guichaguri.trackplayer.service.MusicBinder;
 import com.guichaguri.trackplayer.service.MusicService;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.browse.BrowseTree;
+import com.guichaguri.trackplayer.service.download.DownloadQueue;
 import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.player.Evictor;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
 import com.google.android.exoplayer2.Player;
 import com.guichaguri.trackplayer.service.player.LocalPlayback;
+import com.guichaguri.trackplayer.service.player.NetworkStats;
 
 
 import javax.annotation.Nonnull;
@@ -578,6 +583,255 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         });
     }
 
+    @ReactMethod
+    public void setPinnedCacheKeys(ReadableArray keys, final Promise callback) {
+        final List<String> pinned = toStringList(keys);
+
+        waitForConnection(() -> {
+            ExoPlayback playback = binder.getPlayback();
+
+            // The keys are applied once the cache is ready
+            if(!(playback instanceof LocalPlayback) || ((LocalPlayback)playback).getCacheMaxSize() >= 0) {
+                callback.reject("cache_unsupported", "Pinning requires a negative maxCacheSize");
+                return;
+            }
+
+            ((LocalPlayback)playback).setPinnedKeys(pinned);
+            callback.resolve(null);
+        });
+    }
+
+    private LocalPlayback getCachedPlayback(Promise callback) {
+        ExoPlayback playback = binder.getPlayback();
+
+        if(playback instanceof LocalPlayback && ((LocalPlayback)playback).hasCache()) {
+            return (LocalPlayback)playback;
+        }
+
+        callback.reject("cache_unsupported", "The cache is disabled or still loading");
+        return null;
+    }
+
+    @ReactMethod
+    public void getCacheStatus(ReadableArray keys, final Promise callback) {
+        final List<String> list = toStringList(keys);
+
+        waitForConnection(() -> {
+            LocalPlayback playback = getCachedPlayback(callback);
+            if(playback == null) return;
+
+            callback.resolve(Arguments.fromList(playback.getCacheStatus(list)));
+        });
+    }
+
+    @ReactMethod
+    public void getCacheSize(final Promise callback) {
+        waitForConnection(() -> {
+            LocalPlayback playback = getCachedPlayback(callback);
+            if(playback == null) return;
+
+            callback.resolve(Arguments.fromBundle(playback.getCacheSize()));
+        });
+    }
+
+    @ReactMethod
+    public void listCachedKeys(final int offset, final int limit, final Promise callback) {
+        waitForConnection(() -> {
+            LocalPlayback playback = getCachedPlayback(callback);
+            if(playback == null) return;
+
+            callback.resolve(Arguments.fromList(playback.listCachedKeys(offset, limit)));
+        });
+    }
+
+    @ReactMethod
+    public void removeFromCache(ReadableArray keys, final Promise callback) {
+        final List<String> list = toStringList(keys);
+
+        waitForConnection(() -> {
+            LocalPlayback playback = getCachedPlayback(callback);
+            if(playback == null) return;
+
+            playback.removeFromCache(list, callback);
+        });
+    }
+
+    @ReactMethod
+    public void getNetworkStats(final Promise callback) {
+        waitForConnection(() -> {
+            ExoPlayback playback = binder.getPlayback();
+
+            if(!(playback instanceof LocalPlayback)) {
+                callback.reject("stats_unsupported", "Network stats are only available for the local playback");
+                return;
+            }
+
+            NetworkStats stats = ((LocalPlayback)playback).getNetworkStats();
+            Bundle bundle = stats.getSessionStats();
+            bundle.putParcelableArrayList("tracks", new ArrayList<>(stats.getTrackStats()));
+            callback.resolve(Arguments.fromBundle(bundle));
+        });
+    }
+
+    @ReactMethod
+    public void getCacheStats(final Promise callback) {
+        waitForConnection(() -> {
+            ExoPlayback playback = binder.getPlayback();
+            Evictor evictor = playback instanceof LocalPlayback ? ((LocalPlayback)playback).getEvictor() : null;
+
+            if(evictor == null) {
+                callback.reject("cache_unsupported", "Cache stats require a negative maxCacheSize");
+                return;
+            }
+
+            callback.resolve(Arguments.fromBundle(evictor.getStats()));
+        });
+    }
+
+    @ReactMethod
+    public void promoteToPersistentCache(ReadableArray keys, final Promise callback) {
+        final List<String> list = toStringList(keys);
+
+        waitForConnection(() -> {
+            LocalPlayback playback = getCachedPlayback(callback);
+            if(playback == null) return;
+
+            playback.promoteToPersistentCache(list, callback);
+        });
+    }
+
+    private DownloadQueue getDownloadQueue(Promise callback) {
+        ExoPlayback playback = binder.getPlayback();
+        DownloadQueue downloads = playback instanceof LocalPlayback ? ((LocalPlayback)playback).getDownloads() : null;
+
+        if(downloads == null) callback.reject("download_unsupported", "Downloads require a persistent cache that is done loading");
+        return downloads;
+    }
+
+    private static List<String> toStringList(ReadableArray array) {
+        List<String> list = new ArrayList<>();
+
+        for(Object o : Arguments.toList(array)) {
+            if(o instanceof String) list.add((String)o);
+        }
+
+        return list;
+    }
+
+    @ReactMethod
+    public void download(ReadableArray tracks, final int priority, final Promise callback) {
+        final ArrayList bundleList = Arguments.toList(tracks);
+
+        waitForConnection(() -> {
+            DownloadQueue downloads = getDownloadQueue(callback);
+            if(downloads == null) return;
+
+            List<Track> trackList;
+
+            try {
+                trackList = Track.createTracks(getReactApplicationContext(), bundleList, binder.getRatingType());
+            } catch(Exception ex) {
+                callback.reject("invalid_track_object", ex);
+                return;
+            }
+
+            if(trackList == null || trackList.isEmpty()) {
+                callback.reject("invalid_track_object", "Track is missing a required key");
+                return;
+            }
+
+            for(Track track : trackList) {
+                downloads.add(track, priority);
+            }
+
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void pauseDownloads(ReadableArray ids, final Promise callback) {
+        final List<String> list = toStringList(ids);
+
+        waitForConnection(() -> {
+            DownloadQueue downloads = getDownloadQueue(callback);
+            if(downloads == null) return;
+
+            for(String id : list) downloads.setPaused(id, true);
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void resumeDownloads(ReadableArray ids, final Promise callback) {
+        final List<String> list = toStringList(ids);
+
+        waitForConnection(() -> {
+            DownloadQueue downloads = getDownloadQueue(callback);
+            if(downloads == null) return;
+
+            for(String id : list) downloads.setPaused(id, false);
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void removeDownloads(ReadableArray ids, final Promise callback) {
+        final List<String> list = toStringList(ids);
+
+        waitForConnection(() -> {
+            DownloadQueue downloads = getDownloadQueue(callback);
+            if(downloads == null) return;
+
+            for(String id : list) downloads.remove(id);
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void setDownloadPriority(final String id, final int priority, final Promise callback) {
+        waitForConnection(() -> {
+            DownloadQueue downloads = getDownloadQueue(callback);
+            if(downloads == null) return;
+
+            try {
+                if(downloads.setPriority(id, priority)) {
+                    callback.resolve(null);
+                } else {
+                    callback.reject("download_not_found", "Given download ID was not found");
+                }
+            } catch(Exception ex) {
+                callback.reject("download_error", ex);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getDownloads(final Promise callback) {
+        waitForConnection(() -> {
+            DownloadQueue downloads = getDownloadQueue(callback);
+            if(downloads == null) return;
+
+            try {
+                callback.resolve(Arguments.fromList(downloads.getDownloads()));
+            } catch(Exception ex) {
+                callback.reject("download_error", ex);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void restoreQueue(final Promise callback) {
+        waitForConnection(() -> {
+            ExoPlayback playback = binder.getPlayback();
+
+            if(playback instanceof LocalPlayback) {
+                ((LocalPlayback)playback).restoreQueue(callback);
+            } else {
+                callback.reject("persistence_disabled", "The queue persistence is not enabled");
+            }
+        });
+    }
+
     @ReactMethod
     public void getCurrentTrack(final Promise callback) {
         waitForConnection(() -> {
@@ -647,4 +901,38 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
     public void getState(final Promise callback) {
         waitForConnection(() -> callback.resolve(binder.getPlayback().getState()));
     }
+
+    @ReactMethod
+    public void setBrowseChildren(final String parentId, ReadableArray items, final Promise callback) {
+        final ArrayList bundleList = Arguments.toList(items);
+        final ReactContext context = getReactApplicationContext();
+
+        // The browse tree doesn't depend on the player, so there's no need to wait for the service
+        UiThreadUtil.runOnUiThread(() -> {
+            List<MediaItem> children = new ArrayList<>();
+
+            try {
+                for(Object o : bundleList) {
+                    if(!(o instanceof Bundle)) throw new IllegalArgumentException("Browse items must be objects");
+                    children.add(BrowseTree.fromBundle(context, (Bundle)o));
+                }
+            } catch(Exception ex) {
+                callback.reject("invalid_browse_item", ex);
+                return;
+            }
+
+            BrowseTree.getInstance(context).setChildren(parentId, children);
+            callback.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void clearBrowseCache(final Promise callback) {
+        final ReactContext context = getReactApplicationContext();
+
+        UiThreadUtil.runOnUiThread(() -> {
+            BrowseTree.getInstance(context).clear();
+            callback.resolve(null);
+        });
+    }
 }
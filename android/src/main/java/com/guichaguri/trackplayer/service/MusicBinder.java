@@ -2,6 +2,7 @@ package com.guichaguri.trackplayer.service;
 
 import android.os.Binder;
 import android.os.Bundle;
+import android.support.v4.media.session.MediaSessionCompat;
 import com.facebook.react.bridge.Promise;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
 
@@ -19,30 +20,24 @@ public class MusicBinder extends Binder {
     }
 
     public void post(Runnable r) {
-        service.handler.post(r);
+        manager.post(r);
     }
 
     public ExoPlayback getPlayback() {
-        ExoPlayback playback = manager.getPlayback();
-
-        // TODO remove?
-        if(playback == null) {
-            playback = manager.createLocalPlayback(new Bundle());
-            manager.switchPlayback(playback);
-        }
-
-        return playback;
+        // Built by the prewarm, which the posted tasks wait for
+        return manager.getPlayback();
     }
 
     public void setupPlayer(Bundle bundle, Promise promise) {
-        manager.switchPlayback(manager.createLocalPlayback(bundle));
-        promise.resolve(null);
+        manager.setupPlayer(bundle, promise);
     }
 
     public void updateOptions(Bundle bundle) {
-        manager.setStopWithApp(bundle.getBoolean("stopWithApp", false));
-        manager.setAlwaysPauseOnInterruption(bundle.getBoolean("alwaysPauseOnInterruption", false));
-        manager.getMetadata().updateOptions(bundle);
+        manager.updateOptions(bundle);
+    }
+
+    public MediaSessionCompat.Token getSessionToken() {
+        return manager.getMetadata().getSession().getSessionToken();
     }
 
     public int getRatingType() {
@@ -0,0 +1,79 @@
+package com.guichaguri.trackplayer.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import androidx.media.MediaBrowserServiceCompat;
+import com.guichaguri.trackplayer.service.browse.BrowseTree;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Exposes the browse tree to Android Auto, Wear and other media browsers.
+ *
+ * The session is owned by {@link MusicService}, so this service binds to it to get the session token.
+ * @author Drazail
+ */
+public class MusicBrowserService extends MediaBrowserServiceCompat implements ServiceConnection, BrowseTree.Listener {
+
+    private BrowseTree tree;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        tree = BrowseTree.getInstance(this);
+        tree.setListener(this);
+
+        Intent intent = new Intent(this, MusicService.class);
+        intent.setAction(Utils.BROWSE_INTENT);
+        bindService(intent, this, Context.BIND_AUTO_CREATE);
+    }
+
+    @Nullable
+    @Override
+    public BrowserRoot onGetRoot(String clientPackageName, int clientUid, @Nullable Bundle rootHints) {
+        return new BrowserRoot(BrowseTree.ROOT_ID, null);
+    }
+
+    @Override
+    public void onLoadChildren(String parentId, Result<List<MediaItem>> result) {
+        tree.loadChildren(parentId, result, null);
+    }
+
+    @Override
+    public void onLoadChildren(String parentId, Result<List<MediaItem>> result, Bundle options) {
+        tree.loadChildren(parentId, result, options);
+    }
+
+    @Override
+    public void onChildrenChanged(String parentId) {
+        notifyChildrenChanged(parentId);
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        // The token can only be set once per browser service
+        if(getSessionToken() == null) {
+            setSessionToken(((MusicBinder)service).getSessionToken());
+        }
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        // Nothing to do, browsers will reconnect to a new instance of this service
+    }
+
+    @Override
+    public void onDestroy() {
+        tree.setListener(null);
+        unbindService(this);
+
+        super.onDestroy();
+    }
+
+}
@@ -16,20 +16,37 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.support.v4.media.session.PlaybackStateCompat;
 import androidx.annotation.RequiresApi;
 import android.util.Log;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
 import com.google.android.exoplayer2.C;
-import com.google.android.exoplayer2.DefaultLoadControl;
 import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlayerFactory;
-import com.google.android.exoplayer2.LoadControl;
 import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.analytics.AnalyticsCollector;
+import com.google.android.exoplayer2.database.DatabaseProvider;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.guichaguri.trackplayer.module.MusicEvents;
+import com.guichaguri.trackplayer.service.http.HttpStack;
 import com.guichaguri.trackplayer.service.metadata.MetadataManager;
 import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.persistence.BandwidthStore;
+import com.guichaguri.trackplayer.service.persistence.OptionsStore;
+import com.guichaguri.trackplayer.service.persistence.PlaybackSnapshot;
+import com.guichaguri.trackplayer.service.persistence.QueueJournal;
+import com.guichaguri.trackplayer.service.player.BufferLoadControl;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
+import com.guichaguri.trackplayer.service.player.LoadRetryPolicy;
 import com.guichaguri.trackplayer.service.player.LocalPlayback;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.google.android.exoplayer2.DefaultLoadControl.*;
 
@@ -38,6 +55,8 @@ import static com.google.android.exoplayer2.DefaultLoadControl.*;
  */
 public class MusicManager implements OnAudioFocusChangeListener {
 
+    private static final long SNAPSHOT_INTERVAL_MS = 30000;
+
     private final MusicService service;
 
     private final WakeLock wakeLock;
@@ -54,13 +73,44 @@ public class MusicManager implements OnAudioFocusChangeListener {
     private BroadcastReceiver noisyReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            service.emit(MusicEvents.BUTTON_PAUSE, null);
+            Bundle bundle = null;
+
+            if(playback != null && metadata.isHandledNatively(PlaybackStateCompat.ACTION_PAUSE)) {
+                playback.pause();
+
+                bundle = new Bundle();
+                bundle.putBoolean("handled", true);
+            }
+
+            service.emit(MusicEvents.BUTTON_PAUSE, bundle);
         }
     };
     private boolean receivingNoisyEvents = false;
 
+    // Keeps the position of the snapshot fresh, in case the process is killed in the middle of a track
+    private final Runnable snapshotSaver = new Runnable() {
+        @Override
+        public void run() {
+            saveSnapshot();
+            getHandler().postDelayed(this, SNAPSHOT_INTERVAL_MS);
+        }
+    };
+
     private boolean stopWithApp = false;
     private boolean alwaysPauseOnInterruption = false;
+    private boolean resumeOnMediaButton = false;
+
+    private Bundle playerOptions = new Bundle();
+    private Bundle metadataOptions = new Bundle();
+    private boolean restored = false; // Whether the playback was resumed from a snapshot and wasn't set up by JS yet
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+    private ExoDatabaseProvider databaseProvider;
+    private HttpStack httpStack;
+
+    private final long createdAt = SystemClock.elapsedRealtime();
+    private boolean warming = false;
+    private boolean prewarmed = false;
+    private final ArrayDeque<Runnable> warmupCallbacks = new ArrayDeque<>();
 
     @SuppressLint("InvalidWakeLockTag")
     public MusicManager(MusicService service) {
@@ -81,6 +131,29 @@ public class MusicManager implements OnAudioFocusChangeListener {
         return playback;
     }
 
+    /**
+     * Gets the thread in which the cache is opened and released, along with other disk work
+     */
+    public ExecutorService getDiskExecutor() {
+        return diskExecutor;
+    }
+
+    /**
+     * Gets the database used by the caches and downloads, shared by every playback
+     */
+    public synchronized DatabaseProvider getDatabaseProvider() {
+        if(databaseProvider == null) databaseProvider = new ExoDatabaseProvider(service);
+        return databaseProvider;
+    }
+
+    /**
+     * Gets the network stack shared by every playback
+     */
+    public synchronized HttpStack getHttpStack() {
+        if(httpStack == null) httpStack = HttpStack.create();
+        return httpStack;
+    }
+
     public boolean shouldStopWithApp() {
         return stopWithApp;
     }
@@ -93,6 +166,19 @@ public class MusicManager implements OnAudioFocusChangeListener {
         this.alwaysPauseOnInterruption = alwaysPauseOnInterruption;
     }
 
+    public void updateOptions(Bundle options) {
+        metadataOptions = options;
+
+        setStopWithApp(options.getBoolean("stopWithApp", false));
+        setAlwaysPauseOnInterruption(options.getBoolean("alwaysPauseOnInterruption", false));
+        metadata.updateOptions(options);
+
+        resumeOnMediaButton = options.getBoolean("resumeOnMediaButton", false);
+        if(!resumeOnMediaButton && !diskExecutor.isShutdown()) {
+            diskExecutor.execute(() -> PlaybackSnapshot.delete(service));
+        }
+    }
+
     public MetadataManager getMetadata() {
         return metadata;
     }
@@ -101,7 +187,20 @@ public class MusicManager implements OnAudioFocusChangeListener {
         return service.handler;
     }
 
+    /**
+     * Runs the task in the player thread, after the player is prewarmed
+     */
+    public void post(Runnable r) {
+        if(warming) {
+            warmupCallbacks.add(r);
+        } else {
+            getHandler().post(r);
+        }
+    }
+
     public void switchPlayback(ExoPlayback playback) {
+        prewarmed = false;
+
         if(this.playback != null) {
             this.playback.stop();
             this.playback.destroy();
@@ -115,24 +214,262 @@ public class MusicManager implements OnAudioFocusChangeListener {
     }
 
     public LocalPlayback createLocalPlayback(Bundle options) {
+        playerOptions = options;
+
+        LocalPlayback playback = buildLocalPlayback(options);
+
+        if(options.getBoolean("persistQueue", false)) {
+            playback.setJournal(new QueueJournal(service, diskExecutor));
+        }
+
+        return playback;
+    }
+
+    /**
+     * Builds the player without touching the manager state, so it can be called from a background thread
+     */
+    private LocalPlayback buildLocalPlayback(Bundle options) {
+        int backBuffer = (int)Utils.toMillis(options.getDouble("backBuffer", Utils.toSeconds(DEFAULT_BACK_BUFFER_DURATION_MS)));
+        long cacheMaxSize = (long)(options.getDouble("maxCacheSize", 0) * 1024);
+
+        BufferLoadControl control = new BufferLoadControl(backBuffer);
+        setBufferDurations(control, options);
+
+        // The player is bound to the service looper, even when it's built in another thread.
+        // The bandwidth meter is shared, so the adaptive streams start from the last estimate.
+        SimpleExoPlayer player = ExoPlayerFactory.newSimpleInstance(service, new DefaultRenderersFactory(service),
+                new DefaultTrackSelector(), control, null, BandwidthStore.getMeter(service),
+                new AnalyticsCollector.Factory(), getHandler().getLooper());
+
+        LocalPlayback playback = new LocalPlayback(service, service.getApplicationContext(), this, player, control,
+                cacheMaxSize, getPersistentCacheSize(options));
+        setCacheOptions(playback, options);
+        playback.setRetryPolicy(LoadRetryPolicy.create(options.getBundle("retryPolicy"), LoadRetryPolicy.DEFAULT));
+        playback.setNetworkStatsInterval(Utils.toMillis(options.getDouble("networkStatsInterval", 0)));
+        setPrefetch(playback, options);
+        playback.setMaxParallelDownloads((int)options.getDouble("maxParallelDownloads", 2));
+
+        return playback;
+    }
+
+    /**
+     * Gets the size limit of the persistent tier, 0 when unlimited or {@link C#LENGTH_UNSET} when it's disabled
+     */
+    private long getPersistentCacheSize(Bundle options) {
+        if(!options.getBoolean("persistentCache", false)) return C.LENGTH_UNSET;
+        return (long)(options.getDouble("maxPersistentCacheSize", 0) * 1024);
+    }
+
+    private void setBufferDurations(BufferLoadControl control, Bundle options) {
         int minBuffer = (int)Utils.toMillis(options.getDouble("minBuffer", Utils.toSeconds(DEFAULT_MIN_BUFFER_MS)));
         int maxBuffer = (int)Utils.toMillis(options.getDouble("maxBuffer", Utils.toSeconds(DEFAULT_MAX_BUFFER_MS)));
         int playBuffer = (int)Utils.toMillis(options.getDouble("playBuffer", Utils.toSeconds(DEFAULT_BUFFER_FOR_PLAYBACK_MS)));
+        int multiplier = DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS / DEFAULT_BUFFER_FOR_PLAYBACK_MS;
+
+        control.setBufferDurations(minBuffer, maxBuffer, playBuffer, playBuffer * multiplier);
+    }
+
+    private void setCacheOptions(LocalPlayback playback, Bundle options) {
+        long minSize = (long)(options.getDouble("minCacheSize", 0) * 1024);
+        long minFreeSpace = (long)(options.getDouble("minFreeDiskSpace", 0) * 1024);
+
+        playback.setTrackEviction(options.getBoolean("evictWholeTracks", false));
+        playback.setFrequencyAware("lfu".equals(options.getString("cachePolicy")));
+        playback.setHeadCacheSize((long)(options.getDouble("headCacheSize", 0) * 1024));
+        playback.setAdaptiveCacheSize(minSize, minFreeSpace);
+        playback.setCacheTtl(Utils.toMillis(options.getDouble("cacheTtl", 0)));
+        playback.getCacheKeys().setIgnoredParams(options.getStringArrayList("cacheKeyIgnoredParams"));
+    }
+
+    private void setPrefetch(LocalPlayback playback, Bundle options) {
+        int tracks = (int)options.getDouble("prefetchTracks", 0);
+        long bytes = (long)(options.getDouble("prefetchSize", 512) * 1024);
+        int concurrency = (int)options.getDouble("prefetchConcurrency", 1);
+        long bandwidth = (long)(options.getDouble("prefetchBandwidth", 0) * 1024);
+
+        playback.setPrefetch(tracks, bytes, concurrency, bandwidth);
+    }
+
+    /**
+     * Builds the player and opens the cache in a background thread, using the options from the last setup.
+     * Tasks posted through {@link #post(Runnable)} wait until it's done, and always find a player afterwards.
+     */
+    public void prewarm() {
+        if(playback != null || warming || diskExecutor.isShutdown()) return;
+
+        warming = true;
+        long start = SystemClock.elapsedRealtime();
+        Handler handler = getHandler();
+
+        diskExecutor.execute(() -> {
+            Bundle options = OptionsStore.read(service);
+            if(options == null) options = new Bundle();
+
+            LocalPlayback warm = null;
+
+            try {
+                warm = buildLocalPlayback(options);
+                warm.prepareCache();
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't prewarm the player", ex);
+
+                if(warm != null) warm.destroy();
+                warm = null;
+            }
+
+            LocalPlayback playback = warm;
+            Bundle warmOptions = options;
+            handler.post(() -> onPrewarmed(playback, warmOptions, start));
+        });
+    }
+
+    private void onPrewarmed(LocalPlayback warm, Bundle options, long start) {
+        warming = false;
+
+        if(playback != null || diskExecutor.isShutdown()) {
+            // The service was destroyed or got a player in the meantime
+            if(warm != null) warm.destroy();
+        } else if(warm != null) {
+            playerOptions = options;
+
+            if(options.getBoolean("persistQueue", false)) {
+                warm.setJournal(new QueueJournal(service, diskExecutor));
+            }
+
+            switchPlayback(warm);
+            prewarmed = true;
+
+            Log.d(Utils.LOG, "Player prewarmed in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        } else {
+            // The stored options couldn't be applied, the posted tasks still need a player until the next setup
+            switchPlayback(createLocalPlayback(new Bundle()));
+        }
+
+        while(!warmupCallbacks.isEmpty()) {
+            getHandler().post(warmupCallbacks.remove());
+        }
+    }
+
+    /**
+     * Sets up the player with the options from JS, reusing the prewarmed player when possible.
+     * The promise resolves once the player and its cache are ready, with how long they took since the service
+     * started and how the player was built.
+     */
+    public void setupPlayer(Bundle options, Promise promise) {
+        String player;
+
+        if(restored) {
+            // Keeps the playback that was resumed from a media button
+            restored = false;
+            player = "restored";
+        } else if(reconfigure(options)) {
+            player = "prewarmed";
+        } else {
+            switchPlayback(createLocalPlayback(options));
+            player = "created";
+        }
+
+        if(!diskExecutor.isShutdown()) {
+            diskExecutor.execute(() -> OptionsStore.write(service, options));
+        }
+
+        LocalPlayback local = (LocalPlayback)playback;
+
+        local.whenCacheReady(() -> {
+            long readyAt = local.getReadyAt();
+            long timeToReady = readyAt == 0 ? C.TIME_UNSET : readyAt - createdAt;
+            Log.d(Utils.LOG, "Player " + player + " and ready " + timeToReady + "ms after the service started");
+
+            Bundle bundle = new Bundle();
+            bundle.putDouble("timeToReady", timeToReady == C.TIME_UNSET ? -1 : Utils.toSeconds(timeToReady));
+            bundle.putString("player", player);
+            promise.resolve(Arguments.fromBundle(bundle));
+        });
+    }
+
+    /**
+     * Applies the options to the prewarmed player
+     * @return Whether the options could be applied without building a new player
+     */
+    private boolean reconfigure(Bundle options) {
+        if(!prewarmed) return false;
+        prewarmed = false;
+
+        LocalPlayback local = (LocalPlayback)playback;
+        BufferLoadControl control = local.getLoadControl();
+
         int backBuffer = (int)Utils.toMillis(options.getDouble("backBuffer", Utils.toSeconds(DEFAULT_BACK_BUFFER_DURATION_MS)));
         long cacheMaxSize = (long)(options.getDouble("maxCacheSize", 0) * 1024);
-        int multiplier = DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS / DEFAULT_BUFFER_FOR_PLAYBACK_MS;
 
-        LoadControl control = new DefaultLoadControl.Builder()
-                .setBufferDurationsMs(minBuffer, maxBuffer, playBuffer, playBuffer * multiplier)
-                .setBackBuffer(backBuffer, false)
-                .createDefaultLoadControl();
+        // The back buffer and the cache can't be changed after the player is built
+        if(!local.getQueue().isEmpty() || control.getBackBuffer() != backBuffer || local.getCacheMaxSize() != cacheMaxSize
+                || local.getPersistentCacheMaxSize() != getPersistentCacheSize(options)) {
+            return false;
+        }
 
-        SimpleExoPlayer player = ExoPlayerFactory.newSimpleInstance(service, new DefaultRenderersFactory(service), new DefaultTrackSelector(), control);
+        setBufferDurations(control, options);
+        setCacheOptions(local, options);
+        local.setRetryPolicy(LoadRetryPolicy.create(options.getBundle("retryPolicy"), LoadRetryPolicy.DEFAULT));
+        local.setNetworkStatsInterval(Utils.toMillis(options.getDouble("networkStatsInterval", 0)));
+        setPrefetch(local, options);
+        local.setMaxParallelDownloads((int)options.getDouble("maxParallelDownloads", 2));
 
-        player.setAudioAttributes(new com.google.android.exoplayer2.audio.AudioAttributes.Builder()
-                .setContentType(C.CONTENT_TYPE_MUSIC).setUsage(C.USAGE_MEDIA).build());
+        boolean persistQueue = options.getBoolean("persistQueue", false);
+        if(persistQueue != playerOptions.getBoolean("persistQueue", false)) {
+            local.setJournal(persistQueue ? new QueueJournal(service, diskExecutor) : null);
+        }
 
-        return new LocalPlayback(service, service.getApplicationContext(), this, player, cacheMaxSize);
+        playerOptions = options;
+        return true;
+    }
+
+    /**
+     * Restores the playback from a snapshot and starts playing it right away, without waiting for JS
+     */
+    public void restore(PlaybackSnapshot snapshot) {
+        long start = System.currentTimeMillis();
+
+        updateOptions(snapshot.metadataOptions != null ? snapshot.metadataOptions : new Bundle());
+
+        LocalPlayback playback = createLocalPlayback(snapshot.playerOptions != null ? snapshot.playerOptions : new Bundle());
+        switchPlayback(playback);
+
+        List<Track> tracks = new ArrayList<>(snapshot.tracks.size());
+        for(Bundle bundle : snapshot.tracks) {
+            tracks.add(new Track(service, bundle, metadata.getRatingType()));
+        }
+
+        playback.restore(tracks, snapshot.index, snapshot.position);
+        playback.play();
+        restored = true;
+
+        // Starts the foreground service now, as we're not waiting for the player to buffer
+        onPlay();
+
+        Log.d(Utils.LOG, "Playback restored in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void saveSnapshot() {
+        if(!resumeOnMediaButton || playback == null || diskExecutor.isShutdown()) return;
+
+        Integer index = playback.getCurrentTrackIndex();
+
+        if(index == null) {
+            diskExecutor.execute(() -> PlaybackSnapshot.delete(service));
+            return;
+        }
+
+        // Only copies the window that is saved, as it's saved periodically while playing
+        List<Track> tracks = playback.getQueue();
+        int from = Math.max(index - PlaybackSnapshot.TRACKS_BEFORE, 0);
+        int to = Math.min(index + PlaybackSnapshot.TRACKS_AFTER + 1, tracks.size());
+
+        List<Bundle> queue = new ArrayList<>(to - from);
+        for(Track track : tracks.subList(from, to)) queue.add(new Bundle(track.originalItem));
+
+        PlaybackSnapshot snapshot = new PlaybackSnapshot(playerOptions, metadataOptions, queue, index - from,
+                playback.getPosition());
+        diskExecutor.execute(() -> snapshot.write(service));
     }
 
     @SuppressLint("WakelockTimeout")
@@ -159,6 +496,11 @@ public class MusicManager implements OnAudioFocusChangeListener {
         }
 
         metadata.setActive(true);
+
+        if(resumeOnMediaButton) {
+            getHandler().removeCallbacks(snapshotSaver);
+            getHandler().postDelayed(snapshotSaver, SNAPSHOT_INTERVAL_MS);
+        }
     }
 
     public void onPause() {
@@ -175,6 +517,9 @@ public class MusicManager implements OnAudioFocusChangeListener {
         if(wifiLock.isHeld()) wifiLock.release();
 
         metadata.setActive(true);
+
+        getHandler().removeCallbacks(snapshotSaver);
+        saveSnapshot();
     }
 
     public void onStop() {
@@ -193,6 +538,9 @@ public class MusicManager implements OnAudioFocusChangeListener {
         abandonFocus();
 
         metadata.setActive(false);
+
+        getHandler().removeCallbacks(snapshotSaver);
+        saveSnapshot();
     }
 
     public void onStateChange(int state) {
@@ -214,6 +562,8 @@ public class MusicManager implements OnAudioFocusChangeListener {
         bundle.putDouble("position", Utils.toSeconds(prevPos));
         bundle.putString("nextTrack", next != null ? next.id : null);
         service.emit(MusicEvents.PLAYBACK_TRACK_CHANGED, bundle);
+
+        saveSnapshot();
     }
 
     public void onReset() {
@@ -342,6 +692,8 @@ public class MusicManager implements OnAudioFocusChangeListener {
     public void destroy() {
         Log.d(Utils.LOG, "Releasing service resources...");
 
+        if(getHandler() != null) getHandler().removeCallbacks(snapshotSaver);
+
         // Disable audio focus
         abandonFocus();
 
@@ -360,5 +712,17 @@ public class MusicManager implements OnAudioFocusChangeListener {
         // Release the locks
         if(wifiLock.isHeld()) wifiLock.release();
         if(wakeLock.isHeld()) wakeLock.release();
+
+        synchronized(this) {
+            if(httpStack != null) httpStack.release();
+        }
+
+        // Closed after the cache is released
+        diskExecutor.execute(() -> {
+            synchronized(this) {
+                if(databaseProvider != null) databaseProvider.close();
+            }
+        });
+        diskExecutor.shutdown();
     }
 }
@@ -6,8 +6,8 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.view.KeyEvent;
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.media.session.MediaButtonReceiver;
 import android.app.NotificationManager;
 import android.content.Context;
@@ -18,6 +18,7 @@ import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.jstasks.HeadlessJsTaskConfig;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.persistence.PlaybackSnapshot;
 import javax.annotation.Nullable;
 
 /**
@@ -27,6 +28,7 @@ public class MusicService extends HeadlessJsTaskService {
 
     MusicManager manager;
     Handler handler;
+    boolean taskStarted = false; // Whether the headless task was started, by a start command or a browser
 
     @Override
     public void onCreate(){
@@ -53,15 +55,32 @@ public class MusicService extends HeadlessJsTaskService {
     }
 
     public void emit(String event, Bundle data) {
-        Intent intent = new Intent(Utils.EVENT_INTENT);
+        Utils.emit(this, event, data);
+    }
+
+    /**
+     * Creates the manager if the service hasn't been started yet
+     */
+    private void ensureManager() {
+        if(manager != null) return;
+
+        manager = new MusicManager(this);
+        handler = new Handler();
+    }
 
-        intent.putExtra("event", event);
-        if(data != null) intent.putExtra("data", data);
+    /**
+     * Starts the headless task once, so the JS playback service can handle the media commands
+     */
+    private void startHeadlessTask(Intent intent) {
+        if(taskStarted) return;
+        taskStarted = true;
 
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        startTask(getTaskConfig(intent));
     }
 
     public void destroy() {
+        taskStarted = false;
+
         if(handler != null) {
             handler.removeMessages(0);
             handler = null;
@@ -98,11 +117,36 @@ public class MusicService extends HeadlessJsTaskService {
         }
     }
 
+    private boolean resumeFromSnapshot(Intent intent) {
+        KeyEvent event = intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+        if(event == null) return false;
+
+        int code = event.getKeyCode();
+        if(code != KeyEvent.KEYCODE_MEDIA_PLAY && code != KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE &&
+                code != KeyEvent.KEYCODE_HEADSETHOOK) return false;
+
+        PlaybackSnapshot snapshot = PlaybackSnapshot.read(this);
+        if(snapshot == null || snapshot.tracks.isEmpty()) return false;
+
+        ensureManager();
+        manager.restore(snapshot);
+        return true;
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
         if(Utils.CONNECT_INTENT.equals(intent.getAction())) {
             return new MusicBinder(this, manager);
+        } else if(Utils.BROWSE_INTENT.equals(intent.getAction())) {
+            ensureManager();
+
+            // Builds the player while the browser and JS are still connecting
+            manager.prewarm();
+
+            // The transport commands of the browser are handled in JS, which might not be running yet
+            startHeadlessTask(intent);
+            return new MusicBinder(this, manager);
         }
 
         return super.onBind(intent);
@@ -111,6 +155,9 @@ public class MusicService extends HeadlessJsTaskService {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if(intent != null && Intent.ACTION_MEDIA_BUTTON.equals(intent.getAction())) {
+            // Resumes the last playback natively when the service was killed
+            if(manager == null && resumeFromSnapshot(intent)) return START_NOT_STICKY;
+
             // Check if the app is on background, then starts a foreground service and then ends it right after
             onStartForeground();
             
@@ -121,10 +168,16 @@ public class MusicService extends HeadlessJsTaskService {
             return START_NOT_STICKY;
         }
 
-        manager = new MusicManager(this);
-        handler = new Handler();
+        ensureManager();
 
-        super.onStartCommand(intent, flags, startId);
+        // Builds the player while JS is still connecting to the service
+        manager.prewarm();
+
+        // The task might already be running for a media browser
+        if(!taskStarted) {
+            taskStarted = true;
+            super.onStartCommand(intent, flags, startId);
+        }
         return START_STICKY;
     }
 
@@ -4,12 +4,14 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
 import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.views.imagehelper.ResourceDrawableIdHelper;
 import com.google.android.exoplayer2.upstream.RawResourceDataSource;
@@ -21,9 +23,19 @@ public class Utils {
 
     public static final String EVENT_INTENT = "com.guichaguri.trackplayer.event";
     public static final String CONNECT_INTENT = "com.guichaguri.trackplayer.connect";
+    public static final String BROWSE_INTENT = "com.guichaguri.trackplayer.browse";
     public static final String NOTIFICATION_CHANNEL = "com.guichaguri.trackplayer";
     public static final String LOG = "RNTrackPlayer";
 
+    public static void emit(Context context, String event, Bundle data) {
+        Intent intent = new Intent(EVENT_INTENT);
+
+        intent.putExtra("event", event);
+        if(data != null) intent.putExtra("data", data);
+
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
     public static Runnable toRunnable(Promise promise) {
         return () -> promise.resolve(null);
     }
@@ -0,0 +1,19 @@
+package com.guichaguri.trackplayer.service.browse;
+
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import java.util.List;
+
+/**
+ * Native source of browse nodes, consulted before asking JS for a node
+ * @author Drazail
+ */
+public interface BrowseProvider {
+
+    /**
+     * Loads the children of a node. Called from a background thread.
+     * @param parentId The node id
+     * @return The children, or {@code null} if this provider doesn't know the node
+     */
+    List<MediaItem> loadChildren(String parentId);
+
+}
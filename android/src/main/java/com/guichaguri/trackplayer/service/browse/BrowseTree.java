@@ -0,0 +1,313 @@
+package com.guichaguri.trackplayer.service.browse;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+import android.util.LruCache;
+import androidx.media.MediaBrowserServiceCompat.Result;
+import com.guichaguri.trackplayer.module.MusicEvents;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Holds the browse tree served to Android Auto, Wear and other media browsers.
+ *
+ * Nodes are looked up in memory, then on disk, then in the native {@link BrowseProvider}.
+ * Only when all of them miss, JS is asked for the node through the {@link MusicEvents#BROWSE_LOAD_CHILDREN} event.
+ *
+ * All methods should be called from the main thread.
+ * @author Drazail
+ */
+public class BrowseTree {
+
+    public static final String ROOT_ID = "root";
+
+    private static final int MEMORY_NODES = 64;
+    private static final long JS_TIMEOUT_MS = 5000;
+
+    private static BrowseTree instance;
+
+    public static synchronized BrowseTree getInstance(Context context) {
+        if(instance == null) instance = new BrowseTree(context.getApplicationContext());
+        return instance;
+    }
+
+    public interface Listener {
+        void onChildrenChanged(String parentId);
+    }
+
+    private static class Request {
+        final Result<List<MediaItem>> result;
+        final Bundle options;
+
+        Request(Result<List<MediaItem>> result, Bundle options) {
+            this.result = result;
+            this.options = options;
+        }
+    }
+
+    private final Context context;
+    private final File cacheDir;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+    private final LruCache<String, List<MediaItem>> memory = new LruCache<>(MEMORY_NODES);
+    private final Map<String, List<Request>> pending = new HashMap<>();
+
+    private BrowseProvider provider;
+    private Listener listener;
+
+    private BrowseTree(Context context) {
+        this.context = context;
+        this.cacheDir = new File(context.getCacheDir(), "TrackPlayerBrowse");
+    }
+
+    public void setProvider(BrowseProvider provider) {
+        this.provider = provider;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Serves a page of children, loading the node if it isn't in memory yet
+     */
+    public void loadChildren(String parentId, Result<List<MediaItem>> result, Bundle options) {
+        List<MediaItem> items = memory.get(parentId);
+
+        if(items != null) {
+            result.sendResult(page(items, options));
+            return;
+        }
+
+        result.detach();
+
+        BrowseProvider provider = this.provider;
+
+        diskExecutor.execute(() -> {
+            List<MediaItem> loaded = readNode(parentId);
+            boolean fromProvider = false;
+
+            if(loaded == null && provider != null) {
+                loaded = provider.loadChildren(parentId);
+                fromProvider = loaded != null;
+            }
+
+            if(fromProvider) writeNode(parentId, loaded);
+
+            List<MediaItem> children = loaded;
+            handler.post(() -> onNodeLoaded(parentId, children, new Request(result, options)));
+        });
+    }
+
+    /**
+     * Replaces the children of a node, completing any request waiting for it
+     */
+    public void setChildren(String parentId, List<MediaItem> items) {
+        memory.put(parentId, items);
+        diskExecutor.execute(() -> writeNode(parentId, items));
+
+        List<Request> requests = pending.remove(parentId);
+
+        if(requests != null) {
+            for(Request request : requests) {
+                request.result.sendResult(page(items, request.options));
+            }
+        }
+
+        if(listener != null) listener.onChildrenChanged(parentId);
+    }
+
+    /**
+     * Drops every node from memory and from disk
+     */
+    public void clear() {
+        memory.evictAll();
+
+        diskExecutor.execute(() -> {
+            File[] files = cacheDir.listFiles();
+            if(files == null) return;
+
+            for(File file : files) file.delete();
+        });
+
+        if(listener != null) listener.onChildrenChanged(ROOT_ID);
+    }
+
+    private void onNodeLoaded(String parentId, List<MediaItem> items, Request request) {
+        if(items != null) {
+            memory.put(parentId, items);
+            request.result.sendResult(page(items, request.options));
+            return;
+        }
+
+        List<Request> requests = pending.get(parentId);
+
+        if(requests != null) {
+            // JS was already asked for this node
+            requests.add(request);
+            return;
+        }
+
+        requests = new ArrayList<>();
+        requests.add(request);
+        pending.put(parentId, requests);
+
+        Bundle bundle = new Bundle();
+        bundle.putString("parentId", parentId);
+        Utils.emit(context, MusicEvents.BROWSE_LOAD_CHILDREN, bundle);
+
+        // Browsers keep a spinner until we answer, so we'll give up if JS doesn't reply in time
+        handler.postDelayed(() -> {
+            List<Request> expired = pending.remove(parentId);
+            if(expired == null) return;
+
+            Log.w(Utils.LOG, "No browse children were provided for " + parentId);
+
+            for(Request r : expired) {
+                r.result.sendResult(Collections.emptyList());
+            }
+        }, JS_TIMEOUT_MS);
+    }
+
+    private static List<MediaItem> page(List<MediaItem> items, Bundle options) {
+        if(options == null) return items;
+
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+
+        if(page < 0 || pageSize < 1) return items;
+
+        long from = (long)page * pageSize;
+        if(from >= items.size()) return Collections.emptyList();
+
+        int to = (int)Math.min(from + pageSize, items.size());
+        return new ArrayList<>(items.subList((int)from, to));
+    }
+
+    private File getNodeFile(String parentId) {
+        return new File(cacheDir, Uri.encode(parentId) + ".json");
+    }
+
+    private List<MediaItem> readNode(String parentId) {
+        File file = getNodeFile(parentId);
+        if(!file.exists()) return null;
+
+        try(InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int)file.length()];
+            int read = 0;
+
+            while(read < data.length) {
+                int r = in.read(data, read, data.length - read);
+                if(r == -1) break;
+                read += r;
+            }
+
+            JSONArray array = new JSONObject(new String(data, 0, read, "UTF-8")).getJSONArray("items");
+            List<MediaItem> items = new ArrayList<>(array.length());
+
+            for(int i = 0; i < array.length(); i++) {
+                items.add(fromJson(array.getJSONObject(i)));
+            }
+
+            return items;
+        } catch(IOException | JSONException ex) {
+            Log.w(Utils.LOG, "Couldn't read the browse node " + parentId, ex);
+            file.delete();
+            return null;
+        }
+    }
+
+    private void writeNode(String parentId, List<MediaItem> items) {
+        if(!cacheDir.exists() && !cacheDir.mkdirs()) return;
+
+        File file = getNodeFile(parentId);
+        File temp = new File(cacheDir, file.getName() + ".tmp");
+
+        try(OutputStream out = new FileOutputStream(temp)) {
+            JSONArray array = new JSONArray();
+            for(MediaItem item : items) array.put(toJson(item));
+
+            JSONObject node = new JSONObject();
+            node.put("parentId", parentId);
+            node.put("items", array);
+
+            out.write(node.toString().getBytes("UTF-8"));
+        } catch(IOException | JSONException ex) {
+            Log.w(Utils.LOG, "Couldn't write the browse node " + parentId, ex);
+            temp.delete();
+            return;
+        }
+
+        if(!temp.renameTo(file)) temp.delete();
+    }
+
+    /**
+     * Creates a browse item from a JS object
+     */
+    public static MediaItem fromBundle(Context context, Bundle bundle) {
+        MediaDescriptionCompat descr = new MediaDescriptionCompat.Builder()
+                .setMediaId(bundle.getString("id"))
+                .setTitle(bundle.getString("title"))
+                .setSubtitle(bundle.getString("subtitle"))
+                .setDescription(bundle.getString("description"))
+                .setIconUri(Utils.getUri(context, bundle, "artwork"))
+                .build();
+
+        int flags = 0;
+        if(bundle.getBoolean("playable", true)) flags |= MediaItem.FLAG_PLAYABLE;
+        if(bundle.getBoolean("browsable", false)) flags |= MediaItem.FLAG_BROWSABLE;
+
+        return new MediaItem(descr, flags);
+    }
+
+    private static JSONObject toJson(MediaItem item) throws JSONException {
+        MediaDescriptionCompat descr = item.getDescription();
+        JSONObject json = new JSONObject();
+
+        json.put("id", descr.getMediaId());
+        json.put("flags", item.getFlags());
+        if(descr.getTitle() != null) json.put("title", descr.getTitle().toString());
+        if(descr.getSubtitle() != null) json.put("subtitle", descr.getSubtitle().toString());
+        if(descr.getDescription() != null) json.put("description", descr.getDescription().toString());
+        if(descr.getIconUri() != null) json.put("artwork", descr.getIconUri().toString());
+
+        return json;
+    }
+
+    private static MediaItem fromJson(JSONObject json) throws JSONException {
+        String artwork = json.optString("artwork", null);
+
+        MediaDescriptionCompat descr = new MediaDescriptionCompat.Builder()
+                .setMediaId(json.getString("id"))
+                .setTitle(json.optString("title", null))
+                .setSubtitle(json.optString("subtitle", null))
+                .setDescription(json.optString("description", null))
+                .setIconUri(artwork != null ? Uri.parse(artwork) : null)
+                .build();
+
+        return new MediaItem(descr, json.getInt("flags"));
+    }
+
+}
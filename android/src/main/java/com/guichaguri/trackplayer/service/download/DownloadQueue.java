@@ -0,0 +1,356 @@
+package com.guichaguri.trackplayer.service.download;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.media.RatingCompat;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.database.DatabaseProvider;
+import com.google.android.exoplayer2.offline.DefaultDownloadIndex;
+import com.google.android.exoplayer2.offline.Download;
+import com.google.android.exoplayer2.offline.DownloadCursor;
+import com.google.android.exoplayer2.offline.DownloadManager;
+import com.google.android.exoplayer2.offline.DownloadRequest;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheKeyFactory;
+import com.guichaguri.trackplayer.module.MusicEvents;
+import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.http.HttpStack;
+import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.models.TrackType;
+import com.guichaguri.trackplayer.service.persistence.BundleCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Downloads tracks into the persistent cache, so they can be played without any network.
+ *
+ * The downloads are run by the ExoPlayer download manager, which resumes them across restarts.
+ * Priorities are applied on top of it by stopping the downloads that don't fit in the parallel downloads.
+ *
+ * All methods should be called from the main thread.
+ * @author Drazail
+ */
+public class DownloadQueue implements DownloadManager.Listener {
+
+    private static final int STOP_REASON_PAUSED = 1;
+    private static final int STOP_REASON_QUEUED = 2;
+
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private final Context context;
+    private final DownloadManager manager;
+    private final CacheKeyFactory cacheKeys;
+    private final Handler handler = new Handler();
+
+    private int maxParallelDownloads = 2;
+    private boolean reportingProgress = false;
+
+    // The priorities changed while their downloads were running, written to the requests once they stop
+    private final Map<String, Integer> changedPriorities = new HashMap<>();
+
+    private final Runnable progress = new Runnable() {
+        @Override
+        public void run() {
+            reportingProgress = false;
+
+            for(Download download : manager.getCurrentDownloads()) {
+                if(download.state != Download.STATE_DOWNLOADING) continue;
+
+                Utils.emit(context, MusicEvents.DOWNLOAD_PROGRESS, toBundle(download, false));
+                reportingProgress = true;
+            }
+
+            if(reportingProgress) handler.postDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    };
+
+    public DownloadQueue(Context context, DatabaseProvider databaseProvider, Cache cache, CacheKeyFactory cacheKeys,
+                         HttpStack http) {
+        this.context = context;
+        this.cacheKeys = cacheKeys;
+        this.manager = new DownloadManager(context, new DefaultDownloadIndex(databaseProvider),
+                new TrackDownloaderFactory(context, cache, cacheKeys, http));
+
+        manager.setMaxParallelDownloads(maxParallelDownloads);
+        manager.addListener(this);
+        manager.resumeDownloads();
+    }
+
+    public void setMaxParallelDownloads(int maxParallelDownloads) {
+        this.maxParallelDownloads = Math.max(maxParallelDownloads, 1);
+        manager.setMaxParallelDownloads(this.maxParallelDownloads);
+        schedule();
+    }
+
+    /**
+     * Adds a track to the queue. When the track is already downloaded, only the missing parts are downloaded again.
+     */
+    public void add(Track track, int priority) {
+        manager.addDownload(createRequest(track, priority));
+    }
+
+    public void setPaused(String id, boolean paused) {
+        manager.setStopReason(id, paused ? STOP_REASON_PAUSED : Download.STOP_REASON_NONE);
+    }
+
+    public void remove(String id) {
+        manager.removeDownload(id);
+    }
+
+    /**
+     * Removes the downloads stored under the given cache keys, along with their data
+     * @return The keys that had a download
+     */
+    public Set<String> removeByCacheKey(Collection<String> keys) throws IOException {
+        Set<String> removed = new HashSet<>();
+
+        try(DownloadCursor cursor = manager.getDownloadIndex().getDownloads()) {
+            while(cursor.moveToNext()) {
+                DownloadRequest request = cursor.getDownload().request;
+                String key = cacheKeys.buildCacheKey(new DataSpec(request.uri, 0, C.LENGTH_UNSET, request.customCacheKey));
+
+                if(keys.contains(key)) {
+                    manager.removeDownload(request.id);
+                    removed.add(key);
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Changes the priority of a download
+     * @return Whether the download was found
+     */
+    public boolean setPriority(String id, int priority) throws IOException {
+        Download download = manager.getDownloadIndex().getDownload(id);
+        if(download == null) return false;
+        if(download.state == Download.STATE_COMPLETED || getCurrentPriority(download.request) == priority) return true;
+
+        if(getPriority(download.request) == priority) {
+            // Back to the written priority, there's nothing left to write
+            changedPriorities.remove(id);
+        } else {
+            changedPriorities.put(id, priority);
+            writePriority(download);
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Writes the changed priority to the request, keeping the stop reason so a paused download stays paused.
+     * Running downloads are left alone, as merging a request into them restarts their task.
+     */
+    private void writePriority(Download download) {
+        String id = download.request.id;
+        Integer priority = changedPriorities.get(id);
+
+        if(priority == null || download.state == Download.STATE_DOWNLOADING) return;
+        changedPriorities.remove(id);
+
+        Track track = getTrack(context, download.request);
+
+        if(track != null && download.state != Download.STATE_COMPLETED && getPriority(download.request) != priority) {
+            manager.addDownload(createRequest(track, priority), download.stopReason);
+        }
+    }
+
+    /**
+     * Lists every download, including the completed and failed ones
+     */
+    public List<Bundle> getDownloads() throws IOException {
+        List<Bundle> downloads = new ArrayList<>();
+
+        try(DownloadCursor cursor = manager.getDownloadIndex().getDownloads()) {
+            while(cursor.moveToNext()) {
+                downloads.add(toBundle(cursor.getDownload(), true));
+            }
+        }
+
+        return downloads;
+    }
+
+    public void release() {
+        handler.removeCallbacks(progress);
+        manager.removeListener(this);
+        manager.release();
+    }
+
+    @Override
+    public void onInitialized(DownloadManager downloadManager) {
+        schedule();
+    }
+
+    @Override
+    public void onDownloadChanged(DownloadManager downloadManager, Download download) {
+        Utils.emit(context, MusicEvents.DOWNLOAD_STATE, toBundle(download, false));
+        writePriority(download);
+
+        if(download.state == Download.STATE_DOWNLOADING && !reportingProgress) {
+            reportingProgress = true;
+            handler.postDelayed(progress, PROGRESS_INTERVAL_MS);
+        }
+
+        schedule();
+    }
+
+    @Override
+    public void onDownloadRemoved(DownloadManager downloadManager, Download download) {
+        changedPriorities.remove(download.request.id);
+
+        Bundle bundle = new Bundle();
+        bundle.putString("id", download.request.id);
+        bundle.putString("state", "removed");
+        Utils.emit(context, MusicEvents.DOWNLOAD_STATE, bundle);
+
+        schedule();
+    }
+
+    /**
+     * Starts the downloads with the highest priority, stopping the others
+     */
+    private void schedule() {
+        if(!manager.isInitialized()) return;
+
+        List<Download> downloads = new ArrayList<>(manager.getCurrentDownloads());
+        Map<String, Integer> priorities = new HashMap<>();
+
+        for(Download download : downloads) {
+            priorities.put(download.request.id, getCurrentPriority(download.request));
+        }
+
+        // Higher priorities first, then the oldest downloads
+        Collections.sort(downloads, (a, b) -> {
+            int priority = Integer.compare(priorities.get(b.request.id), priorities.get(a.request.id));
+            return priority != 0 ? priority : Long.compare(a.startTimeMs, b.startTimeMs);
+        });
+
+        int slots = maxParallelDownloads;
+
+        for(Download download : downloads) {
+            if(download.state == Download.STATE_REMOVING || download.stopReason == STOP_REASON_PAUSED) continue;
+
+            int reason = slots > 0 ? Download.STOP_REASON_NONE : STOP_REASON_QUEUED;
+            if(slots > 0) slots--;
+
+            if(download.stopReason != reason) manager.setStopReason(download.request.id, reason);
+        }
+    }
+
+    private static DownloadRequest createRequest(Track track, int priority) {
+        Bundle data = new Bundle();
+        data.putBundle("track", track.originalItem);
+        data.putInt("priority", priority);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try {
+            BundleCodec.writeBundle(new DataOutputStream(bytes), data);
+        } catch(IOException ex) {
+            // Never thrown by the in-memory stream
+        }
+
+        return new DownloadRequest(track.id, getDownloadType(track.type), track.uri,
+                Collections.emptyList(), track.key, bytes.toByteArray());
+    }
+
+    private static String getDownloadType(TrackType type) {
+        switch(type) {
+            case DASH:
+                return DownloadRequest.TYPE_DASH;
+            case HLS:
+                return DownloadRequest.TYPE_HLS;
+            case SMOOTH_STREAMING:
+                return DownloadRequest.TYPE_SS;
+            default:
+                return DownloadRequest.TYPE_PROGRESSIVE;
+        }
+    }
+
+    private static Bundle readData(DownloadRequest request) {
+        try {
+            return BundleCodec.readBundle(new DataInputStream(new ByteArrayInputStream(request.data)));
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't read the download " + request.id, ex);
+            return null;
+        }
+    }
+
+    private static Bundle getTrackBundle(DownloadRequest request) {
+        Bundle data = readData(request);
+        return data != null ? data.getBundle("track") : null;
+    }
+
+    /**
+     * Gets the priority of a download, including a change that wasn't written yet
+     */
+    private int getCurrentPriority(DownloadRequest request) {
+        Integer priority = changedPriorities.get(request.id);
+        return priority != null ? priority : getPriority(request);
+    }
+
+    private static int getPriority(DownloadRequest request) {
+        Bundle data = readData(request);
+        return data != null ? data.getInt("priority", 0) : 0;
+    }
+
+    /**
+     * Recreates the track stored in a download request
+     */
+    static Track getTrack(Context context, DownloadRequest request) {
+        Bundle track = getTrackBundle(request);
+        return track != null ? new Track(context, track, RatingCompat.RATING_NONE) : null;
+    }
+
+    private static String getState(Download download) {
+        switch(download.state) {
+            case Download.STATE_QUEUED:
+                return "queued";
+            case Download.STATE_STOPPED:
+                return download.stopReason == STOP_REASON_PAUSED ? "paused" : "queued";
+            case Download.STATE_DOWNLOADING:
+                return "downloading";
+            case Download.STATE_COMPLETED:
+                return "completed";
+            case Download.STATE_FAILED:
+                return "failed";
+            case Download.STATE_REMOVING:
+                return "removing";
+            case Download.STATE_RESTARTING:
+                return "restarting";
+        }
+        return "unknown";
+    }
+
+    private Bundle toBundle(Download download, boolean withTrack) {
+        Bundle data = readData(download.request);
+        float percent = download.getPercentDownloaded();
+
+        Bundle bundle = new Bundle();
+        bundle.putString("id", download.request.id);
+        bundle.putString("state", getState(download));
+        bundle.putInt("priority", getCurrentPriority(download.request));
+        bundle.putDouble("bytesDownloaded", download.getBytesDownloaded());
+        bundle.putDouble("contentLength", download.contentLength == C.LENGTH_UNSET ? -1 : download.contentLength);
+        bundle.putDouble("percent", percent == C.PERCENTAGE_UNSET ? -1 : percent);
+        if(withTrack && data != null) bundle.putBundle("track", data.getBundle("track"));
+        return bundle;
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.guichaguri.trackplayer.service.download;
+
+import android.content.Context;
+import com.google.android.exoplayer2.offline.DefaultDownloaderFactory;
+import com.google.android.exoplayer2.offline.DownloadRequest;
+import com.google.android.exoplayer2.offline.Downloader;
+import com.google.android.exoplayer2.offline.DownloaderConstructorHelper;
+import com.google.android.exoplayer2.offline.DownloaderFactory;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheKeyFactory;
+import com.google.android.exoplayer2.util.Util;
+import com.guichaguri.trackplayer.service.http.HttpStack;
+import com.guichaguri.trackplayer.service.models.Track;
+
+/**
+ * Creates the downloaders with the headers and user agent of each track
+ * @author Drazail
+ */
+class TrackDownloaderFactory implements DownloaderFactory {
+
+    private final Context context;
+    private final Cache cache;
+    private final CacheKeyFactory cacheKeys;
+    private final HttpStack http;
+
+    TrackDownloaderFactory(Context context, Cache cache, CacheKeyFactory cacheKeys, HttpStack http) {
+        this.context = context;
+        this.cache = cache;
+        this.cacheKeys = cacheKeys;
+        this.http = http;
+    }
+
+    @Override
+    public Downloader createDownloader(DownloadRequest request) {
+        Track track = DownloadQueue.getTrack(context, request);
+        DataSource.Factory upstream;
+
+        if(track != null) {
+            upstream = track.createHttpDataSourceFactory(context, http, null);
+        } else {
+            upstream = http.createDataSourceFactory(Util.getUserAgent(context, "react-native-track-player"), null, null);
+        }
+
+        // The default factory picks the DASH, HLS or SmoothStreaming downloader when the module is available
+        // The same keys as the playback are used, so it reads the downloaded data
+        DownloaderConstructorHelper helper = new DownloaderConstructorHelper(cache, upstream, null, null, null, cacheKeys);
+        return new DefaultDownloaderFactory(helper).createDownloader(request);
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.guichaguri.trackplayer.service.http;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The network stack shared by every track, the prefetcher and the downloads.
+ *
+ * The source factories are reused for each user agent and header set, and the connections are pooled by host
+ * by the underlying client, so a track change doesn't pay for a new TLS handshake.
+ * @author Drazail
+ */
+public class HttpStack {
+
+    private static final int MAX_FACTORIES = 16;
+    protected static final int WARMUP_TIMEOUT_MS = 5000;
+
+    private final ExecutorService warmupExecutor = Executors.newSingleThreadExecutor();
+
+    // The most recently used factories, by user agent and headers
+    private final Map<String, HttpDataSource.Factory> factories = new LinkedHashMap<String, HttpDataSource.Factory>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HttpDataSource.Factory> eldest) {
+            return size() > MAX_FACTORIES;
+        }
+    };
+
+    /**
+     * Creates the OkHttp stack when its module is enabled, otherwise the default one
+     */
+    public static HttpStack create() {
+        try {
+            Class.forName("com.google.android.exoplayer2.ext.okhttp.OkHttpDataSourceFactory");
+            Log.d(Utils.LOG, "http: OkHttp");
+            return new OkHttpStack();
+        } catch(ClassNotFoundException ex) {
+            Log.d(Utils.LOG, "http: HttpURLConnection");
+            return new HttpStack();
+        }
+    }
+
+    /**
+     * Creates a network source factory
+     * @param headers The request headers, or null
+     * @param listener The listener of the transfers, or null
+     */
+    public DataSource.Factory createDataSourceFactory(String userAgent, Map<String, String> headers, TransferListener listener) {
+        HttpDataSource.Factory factory = getFactory(userAgent, headers);
+        if(listener == null) return factory;
+
+        return () -> {
+            DataSource source = factory.createDataSource();
+            source.addTransferListener(listener);
+            return source;
+        };
+    }
+
+    /**
+     * Resolves the host and opens a connection to it in background, so the next load skips the DNS, TCP and TLS
+     * round trips. The connection is left in the pool.
+     * @return The task, which can be canceled, or null when the stack was released.
+     *         Warm-ups run one at a time and time out after a few seconds.
+     */
+    public Future<?> warmUp(Uri uri, String userAgent, Map<String, String> headers) {
+        if(warmupExecutor.isShutdown()) return null;
+
+        return warmupExecutor.submit(() -> {
+            long start = SystemClock.elapsedRealtime();
+
+            try {
+                connect(uri, userAgent, headers);
+                Log.d(Utils.LOG, "Warmed up " + uri.getHost() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            } catch(IOException ex) {
+                Log.d(Utils.LOG, "Couldn't warm up " + uri.getHost(), ex);
+            }
+        });
+    }
+
+    public void release() {
+        warmupExecutor.shutdownNow();
+    }
+
+    /**
+     * Sends a HEAD request, whatever the response is, the connection is open
+     */
+    protected void connect(Uri uri, String userAgent, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(uri.toString()).openConnection();
+        connection.setRequestMethod("HEAD");
+        connection.setConnectTimeout(WARMUP_TIMEOUT_MS);
+        connection.setReadTimeout(WARMUP_TIMEOUT_MS);
+        connection.setRequestProperty("User-Agent", userAgent);
+
+        if(headers != null) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+
+        // Closing the stream instead of disconnecting keeps the connection alive
+        InputStream in = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if(in != null) in.close();
+    }
+
+    private synchronized HttpDataSource.Factory getFactory(String userAgent, Map<String, String> headers) {
+        boolean hasHeaders = headers != null && !headers.isEmpty();
+        String key = hasHeaders ? userAgent + '\n' + new TreeMap<>(headers) : userAgent;
+        HttpDataSource.Factory factory = factories.get(key);
+
+        if(factory == null) {
+            factory = createFactory(userAgent);
+            if(hasHeaders) factory.getDefaultRequestProperties().set(headers);
+            factories.put(key, factory);
+        }
+
+        return factory;
+    }
+
+    protected HttpDataSource.Factory createFactory(String userAgent) {
+        // Enables cross protocol redirects
+        return new DefaultHttpDataSourceFactory(
+                userAgent, null,
+                DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS,
+                true
+        );
+    }
+
+}
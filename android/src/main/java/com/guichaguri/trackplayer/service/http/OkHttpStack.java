@@ -0,0 +1,57 @@
+package com.guichaguri.trackplayer.service.http;
+
+import android.net.Uri;
+import com.facebook.react.modules.network.OkHttpClientProvider;
+import com.google.android.exoplayer2.ext.okhttp.OkHttpDataSourceFactory;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Uses the OkHttp client of React Native, so the media shares its connection pool with the JS requests.
+ * It's only loaded when the OkHttp module is enabled in the build preferences.
+ * @author Drazail
+ */
+class OkHttpStack extends HttpStack {
+
+    private final OkHttpClient client;
+    private final OkHttpClient warmupClient;
+
+    OkHttpStack() {
+        // The React Native client never times out, which would hang the loaders on a dead connection
+        client = OkHttpClientProvider.getOkHttpClient().newBuilder()
+                .connectTimeout(DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .readTimeout(DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .build();
+
+        // Shares the connection pool, so the warmed up connections are reused
+        warmupClient = client.newBuilder()
+                .callTimeout(WARMUP_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    protected HttpDataSource.Factory createFactory(String userAgent) {
+        return new OkHttpDataSourceFactory(client, userAgent);
+    }
+
+    @Override
+    protected void connect(Uri uri, String userAgent, Map<String, String> headers) throws IOException {
+        Request.Builder request = new Request.Builder().url(uri.toString()).head().header("User-Agent", userAgent);
+
+        if(headers != null) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                request.header(header.getKey(), header.getValue());
+            }
+        }
+
+        Response response = warmupClient.newCall(request.build()).execute();
+        response.close();
+    }
+
+}
@@ -5,11 +5,13 @@ import android.os.Bundle;
 import android.provider.MediaStore;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
 import com.guichaguri.trackplayer.module.MusicEvents;
 import com.guichaguri.trackplayer.service.MusicManager;
 import com.guichaguri.trackplayer.service.MusicService;
 import com.guichaguri.trackplayer.service.Utils;
 import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.player.ExoPlayback;
 import java.util.List;
 
 /**
@@ -25,19 +27,61 @@ public class ButtonEvents extends MediaSessionCompat.Callback {
         this.manager = manager;
     }
 
+    /**
+     * Gets the playback when the action should be handled natively
+     * @return The playback or {@code null} when JS should handle the action
+     */
+    private ExoPlayback getNativePlayback(long action) {
+        if(!manager.getMetadata().isHandledNatively(action)) return null;
+        return manager.getPlayback();
+    }
+
+    /**
+     * Sends the event, marking whether the action was already applied to the player
+     */
+    private void emit(String event, Bundle bundle, boolean handled) {
+        if(handled) {
+            if(bundle == null) bundle = new Bundle();
+            bundle.putBoolean("handled", true);
+        }
+
+        service.emit(event, bundle);
+    }
+
+    private boolean jump(long action, long offset) {
+        ExoPlayback playback = getNativePlayback(action);
+        if(playback == null) return false;
+
+        long position = Math.max(playback.getPosition() + offset, 0);
+        long duration = playback.getDuration();
+        if(duration > 0) position = Math.min(position, duration);
+
+        playback.seekTo(position);
+        return true;
+    }
+
     @Override
     public void onPlay() {
-        service.emit(MusicEvents.BUTTON_PLAY, null);
+        ExoPlayback playback = getNativePlayback(PlaybackStateCompat.ACTION_PLAY);
+        if(playback != null) playback.play();
+
+        emit(MusicEvents.BUTTON_PLAY, null, playback != null);
     }
 
     @Override
     public void onPause() {
-        service.emit(MusicEvents.BUTTON_PAUSE, null);
+        ExoPlayback playback = getNativePlayback(PlaybackStateCompat.ACTION_PAUSE);
+        if(playback != null) playback.pause();
+
+        emit(MusicEvents.BUTTON_PAUSE, null, playback != null);
     }
 
     @Override
     public void onStop() {
-        service.emit(MusicEvents.BUTTON_STOP, null);
+        ExoPlayback playback = getNativePlayback(PlaybackStateCompat.ACTION_STOP);
+        if(playback != null) playback.stop();
+
+        emit(MusicEvents.BUTTON_STOP, null, playback != null);
     }
 
 
@@ -90,45 +134,64 @@ public class ButtonEvents extends MediaSessionCompat.Callback {
     public void onSkipToQueueItem(long id) {
         List<Track> tracks = manager.getPlayback().getQueue();
 
-        for(Track track : tracks) {
+        for(int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
             if(track.queueId != id) continue;
 
+            ExoPlayback playback = getNativePlayback(PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM);
+            boolean handled = playback != null && playback.skipByIndex(i);
+
             Bundle bundle = new Bundle();
             bundle.putString("id", track.id);
-            service.emit(MusicEvents.BUTTON_SKIP, bundle);
+            emit(MusicEvents.BUTTON_SKIP, bundle, handled);
             break;
         }
     }
 
     @Override
     public void onSkipToPrevious() {
-        service.emit(MusicEvents.BUTTON_SKIP_PREVIOUS, null);
+        ExoPlayback playback = getNativePlayback(PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS);
+        boolean handled = playback != null && playback.skipToPrevious();
+
+        emit(MusicEvents.BUTTON_SKIP_PREVIOUS, null, handled);
     }
 
     @Override
     public void onSkipToNext() {
-        service.emit(MusicEvents.BUTTON_SKIP_NEXT, null);
+        ExoPlayback playback = getNativePlayback(PlaybackStateCompat.ACTION_SKIP_TO_NEXT);
+        boolean handled = playback != null && playback.skipToNext();
+
+        emit(MusicEvents.BUTTON_SKIP_NEXT, null, handled);
     }
 
     @Override
     public void onRewind() {
+        int interval = manager.getMetadata().getJumpInterval();
+        boolean handled = jump(PlaybackStateCompat.ACTION_REWIND, -Utils.toMillis(interval));
+
         Bundle bundle = new Bundle();
-        bundle.putInt("interval", manager.getMetadata().getJumpInterval());
-        service.emit(MusicEvents.BUTTON_JUMP_BACKWARD, bundle);
+        bundle.putInt("interval", interval);
+        emit(MusicEvents.BUTTON_JUMP_BACKWARD, bundle, handled);
     }
 
     @Override
     public void onFastForward() {
+        int interval = manager.getMetadata().getJumpInterval();
+        boolean handled = jump(PlaybackStateCompat.ACTION_FAST_FORWARD, Utils.toMillis(interval));
+
         Bundle bundle = new Bundle();
-        bundle.putInt("interval", manager.getMetadata().getJumpInterval());
-        service.emit(MusicEvents.BUTTON_JUMP_FORWARD, bundle);
+        bundle.putInt("interval", interval);
+        emit(MusicEvents.BUTTON_JUMP_FORWARD, bundle, handled);
     }
 
     @Override
     public void onSeekTo(long pos) {
+        ExoPlayback playback = getNativePlayback(PlaybackStateCompat.ACTION_SEEK_TO);
+        if(playback != null) playback.seekTo(pos);
+
         Bundle bundle = new Bundle();
         bundle.putDouble("position", Utils.toSeconds(pos));
-        service.emit(MusicEvents.BUTTON_SEEK_TO, bundle);
+        emit(MusicEvents.BUTTON_SEEK_TO, bundle, playback != null);
     }
 
     @Override
@@ -44,6 +44,7 @@ public class MetadataManager {
     private int jumpInterval = 15;
     private long actions = 0;
     private long compactActions = 0;
+    private long nativeActions = 0;
     private SimpleTarget<Bitmap> artworkTarget;
     private NotificationCompat.Builder builder;
 
@@ -95,9 +96,16 @@ public class MetadataManager {
         List<Integer> capabilities = options.getIntegerArrayList("capabilities");
         List<Integer> notification = options.getIntegerArrayList("notificationCapabilities");
         List<Integer> compact = options.getIntegerArrayList("compactCapabilities");
+        List<Integer> nativeCaps = options.getIntegerArrayList("nativeCapabilities");
 
         actions = 0;
         compactActions = 0;
+        nativeActions = 0;
+
+        // Update the action mask for the actions handled without waiting for JS
+        if(nativeCaps != null) {
+            for(int cap : nativeCaps) nativeActions |= cap;
+        }
 
         if(capabilities != null) {
             // Create the actions mask
@@ -153,6 +161,14 @@ public class MetadataManager {
         return jumpInterval;
     }
 
+    /**
+     * Whether the action should be applied to the player before the event is sent to JS
+     * @param action The {@link PlaybackStateCompat} action
+     */
+    public boolean isHandledNatively(long action) {
+        return (nativeActions & action) != 0;
+    }
+
     public void removeNotifications() {
         String ns = Context.NOTIFICATION_SERVICE;
         Context context = service.getApplicationContext();
@@ -7,10 +7,8 @@ import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.MediaSessionCompat.QueueItem;
-import android.util.Log;
 
 import com.google.android.exoplayer2.C;
-import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
 import com.google.android.exoplayer2.extractor.mp3.Mp3Extractor;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.ProgressiveMediaSource;
@@ -22,9 +20,13 @@ import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
 import com.google.android.exoplayer2.upstream.*;
 import com.google.android.exoplayer2.util.Util;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.http.HttpStack;
+import com.guichaguri.trackplayer.service.player.ExtractorRegistry;
+import com.guichaguri.trackplayer.service.player.LoadRetryPolicy;
 import com.guichaguri.trackplayer.service.player.LocalPlayback;
+import com.guichaguri.trackplayer.service.player.MappedFileDataSource;
+import com.guichaguri.trackplayer.service.player.NetworkStats;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -55,6 +57,8 @@ public class Track {
     public Uri uri;
     public int resourceId;
     public String key;
+    public long cacheTtl = C.TIME_UNSET;
+    public Bundle retryPolicy;
 
     public TrackType type = TrackType.DEFAULT;
 
@@ -103,6 +107,12 @@ public class Track {
         userAgent = bundle.getString("userAgent");
         key = bundle.getString("key");
 
+        retryPolicy = bundle.getBundle("retryPolicy");
+
+        if(bundle.containsKey("cacheTtl")) {
+            cacheTtl = Utils.toMillis(bundle.getDouble("cacheTtl"));
+        }
+
         Bundle httpHeaders = bundle.getBundle("headers");
         if(httpHeaders != null) {
             headers = new HashMap<>();
@@ -170,97 +180,66 @@ public class Track {
         return new QueueItem(descr, queueId);
     }
 
-    public MediaSource toMediaSource(Context ctx, LocalPlayback playback) {
+    /**
+     * Creates the network source factory with the track headers and user agent
+     * @param listener The listener of the transfers, or null
+     */
+    public DataSource.Factory createHttpDataSourceFactory(Context ctx, HttpStack http, TransferListener listener) {
         // Updates the user agent if not set
-
         if(userAgent == null || userAgent.isEmpty())
             userAgent = Util.getUserAgent(ctx, "react-native-track-player");
 
-        DataSource.Factory ds;
-
-        if(resourceId != 0) {
+        return http.createDataSourceFactory(userAgent, headers, listener);
+    }
 
-            try {
-                RawResourceDataSource raw = new RawResourceDataSource(ctx);
-                DataSpec dataSpec;
+    public MediaSource toMediaSource(Context ctx, LocalPlayback playback) {
+        // Updates the user agent if not set
 
-                    dataSpec = new DataSpec(uri);
+        if(userAgent == null || userAgent.isEmpty())
+            userAgent = Util.getUserAgent(ctx, "react-native-track-player");
 
-                raw.open(dataSpec);
-                ds = () -> raw;
-            } catch(IOException ex) {
-                // Should never happen
-                throw new RuntimeException(ex);
-            }
+        DataSource.Factory ds;
 
-        } else if(Utils.isLocal(uri)) {
+        if(resourceId != 0 || Utils.isLocal(uri)) {
 
-            // Creates a local source factory
-            ds = new DefaultDataSourceFactory(ctx, userAgent);
+            // Creates a local source factory, each load maps the file on its own
+            ds = MappedFileDataSource.factory(ctx, new DefaultDataSourceFactory(ctx, userAgent));
 
         } else {
 
-            // Creates a default http source factory, enabling cross protocol redirects
-
-            DefaultHttpDataSourceFactory factory = new DefaultHttpDataSourceFactory(
-                    userAgent, HttpFactoryListener,
-                    DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS,
-                    DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS,
-                    true
-            );
-
-            if(headers != null) {
-                factory.getDefaultRequestProperties().set(headers);
-            }
-
-            ds = playback.enableCaching(factory);
+            NetworkStats.TrackStats stats = playback.getNetworkStats().forKey(playback.getCacheKeys().getKey(this));
+            ds = playback.enableCaching(createHttpDataSourceFactory(ctx, playback.getHttpStack(), stats), stats, cacheTtl);
 
 
         }
 
+        // The track options override the player ones
+        LoadRetryPolicy retry = LoadRetryPolicy.create(retryPolicy, playback.getRetryPolicy());
+
         switch(type) {
             case DASH:
                 return new DashMediaSource.Factory(new DefaultDashChunkSource.Factory(ds), ds)
+                        .setLoadErrorHandlingPolicy(retry)
                         .createMediaSource(uri);
             case HLS:
                 return new HlsMediaSource.Factory(ds)
+                        .setLoadErrorHandlingPolicy(retry)
                         .createMediaSource(uri);
             case SMOOTH_STREAMING:
                 return new SsMediaSource.Factory(new DefaultSsChunkSource.Factory(ds), ds)
+                        .setLoadErrorHandlingPolicy(retry)
                         .createMediaSource(uri);
             default:
                 if(key != null){
-                return new ProgressiveMediaSource.Factory(ds, new DefaultExtractorsFactory()
-                        .setConstantBitrateSeekingEnabled(true))
+                return new ProgressiveMediaSource.Factory(ds, ExtractorRegistry.get(contentType, uri))
                         .setCustomCacheKey(key)
+                        .setLoadErrorHandlingPolicy(retry)
                         .createMediaSource(uri);
                 }else{
-                    return new ProgressiveMediaSource.Factory(ds, new DefaultExtractorsFactory()
-                            .setConstantBitrateSeekingEnabled(true))
+                    return new ProgressiveMediaSource.Factory(ds, ExtractorRegistry.get(contentType, uri))
+                            .setLoadErrorHandlingPolicy(retry)
                             .createMediaSource(uri);
                 }
         }
     }
-
-    private TransferListener HttpFactoryListener = new TransferListener() {
-        @Override
-        public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
-            Log.d(Utils.LOG, "cache onTransferInitializing : source:"+source+" source:"+dataSpec+" source"+isNetwork+"//");
-        }
-
-        @Override
-        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
-            Log.d(Utils.LOG, "cache onTransferStart : source:"+source+" source:"+dataSpec+" source"+isNetwork+"//");
-        }
-
-        @Override
-        public void onBytesTransferred(DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
-            //Log.d(Utils.LOG, "cache onBytesTransferred : source:"+source+" source:"+dataSpec+" source"+isNetwork+"bytesTransferred"+bytesTransferred+"//");
-        }
-
-        @Override
-        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
-            Log.d(Utils.LOG, "cache onTransferEnd : source:"+source+" source:"+dataSpec+" source"+isNetwork+"//");
-        }
-    };
 }
@@ -0,0 +1,131 @@
+package com.guichaguri.trackplayer.service.persistence;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.util.Util;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the bandwidth estimate per network type, so adaptive streams start at the right bitrate
+ * instead of a conservative default after the player is set up again or the service restarts.
+ *
+ * A single bandwidth meter is shared by every player of the process.
+ * @author Drazail
+ */
+public final class BandwidthStore implements BandwidthMeter.EventListener {
+
+    private static final int MAGIC = 0x54504231; // TPB1
+    private static final String FILE_NAME = "TrackPlayerBandwidth";
+    private static final long WRITE_INTERVAL_MS = 30000;
+
+    private static BandwidthStore instance;
+
+    private final Context context;
+    private final File file;
+    private final DefaultBandwidthMeter meter;
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+    // The last estimate by network type, updated in the main thread and written in background
+    private final Map<Integer, Long> estimates;
+    private long lastWrite = 0;
+
+    /**
+     * Gets the bandwidth meter of the process, starting from the persisted estimates
+     */
+    public static synchronized DefaultBandwidthMeter getMeter(Context context) {
+        if(instance == null) instance = new BandwidthStore(context.getApplicationContext());
+        return instance.meter;
+    }
+
+    private BandwidthStore(Context context) {
+        this.context = context;
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        this.estimates = read();
+
+        DefaultBandwidthMeter.Builder builder = new DefaultBandwidthMeter.Builder(context);
+
+        for(Map.Entry<Integer, Long> estimate : estimates.entrySet()) {
+            builder.setInitialBitrateEstimate(estimate.getKey(), estimate.getValue());
+        }
+
+        meter = builder.build();
+        meter.addEventListener(new Handler(Looper.getMainLooper()), this);
+    }
+
+    @Override
+    public void onBandwidthSample(int elapsedMs, long bytes, long bitrate) {
+        int networkType = Util.getNetworkType(context);
+        if(networkType == C.NETWORK_TYPE_UNKNOWN || networkType == C.NETWORK_TYPE_OFFLINE) return;
+
+        Map<Integer, Long> snapshot;
+
+        synchronized(estimates) {
+            estimates.put(networkType, bitrate);
+
+            long now = SystemClock.elapsedRealtime();
+            if(lastWrite != 0 && now - lastWrite < WRITE_INTERVAL_MS) return;
+
+            lastWrite = now;
+            snapshot = new HashMap<>(estimates);
+        }
+
+        writeExecutor.execute(() -> write(snapshot));
+    }
+
+    private Map<Integer, Long> read() {
+        Map<Integer, Long> estimates = new HashMap<>();
+        if(!file.exists()) return estimates;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC) return estimates;
+
+            int size = in.readInt();
+            for(int i = 0; i < size; i++) estimates.put(in.readInt(), in.readLong());
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't read the bandwidth estimates", ex);
+            file.delete();
+            estimates.clear();
+        }
+
+        return estimates;
+    }
+
+    private void write(Map<Integer, Long> estimates) {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(estimates.size());
+
+            for(Map.Entry<Integer, Long> estimate : estimates.entrySet()) {
+                out.writeInt(estimate.getKey());
+                out.writeLong(estimate.getValue());
+            }
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't write the bandwidth estimates", ex);
+            temp.delete();
+            return;
+        }
+
+        if(!temp.renameTo(file)) temp.delete();
+    }
+
+}
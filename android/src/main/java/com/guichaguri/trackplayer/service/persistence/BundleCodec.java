@@ -0,0 +1,157 @@
+package com.guichaguri.trackplayer.service.persistence;
+
+import android.os.Bundle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding for the bundles received from JS.
+ *
+ * Only the types produced by {@code Arguments.toBundle} are supported, other values are written as null.
+ * Unlike {@code Parcel}, the format is stable, so it can be safely stored on disk.
+ * @author Drazail
+ */
+public final class BundleCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+    private static final byte TYPE_BUNDLE = 7;
+    private static final byte TYPE_LIST = 8;
+
+    private BundleCodec() {}
+
+    public static void writeBundle(DataOutput out, Bundle bundle) throws IOException {
+        if(bundle == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(bundle.size());
+
+        for(String key : bundle.keySet()) {
+            writeString(out, key);
+            writeValue(out, bundle.get(key));
+        }
+    }
+
+    public static Bundle readBundle(DataInput in) throws IOException {
+        int size = in.readInt();
+        if(size < 0) return null;
+
+        Bundle bundle = new Bundle();
+
+        for(int i = 0; i < size; i++) {
+            String key = readString(in);
+            Object value = readValue(in);
+
+            if(value instanceof Integer) {
+                bundle.putInt(key, (Integer)value);
+            } else if(value instanceof Long) {
+                bundle.putLong(key, (Long)value);
+            } else if(value instanceof Double) {
+                bundle.putDouble(key, (Double)value);
+            } else if(value instanceof Float) {
+                bundle.putFloat(key, (Float)value);
+            } else if(value instanceof Boolean) {
+                bundle.putBoolean(key, (Boolean)value);
+            } else if(value instanceof Bundle) {
+                bundle.putBundle(key, (Bundle)value);
+            } else if(value instanceof ArrayList) {
+                bundle.putSerializable(key, (ArrayList)value);
+            } else {
+                bundle.putString(key, (String)value);
+            }
+        }
+
+        return bundle;
+    }
+
+    public static void writeString(DataOutput out, String str) throws IOException {
+        // writeUTF is limited to 64KB, which isn't enough for long descriptions
+        byte[] data = str.getBytes(UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new String(data, UTF_8);
+    }
+
+    private static void writeValue(DataOutput out, Object value) throws IOException {
+        if(value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String)value);
+        } else if(value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer)value);
+        } else if(value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long)value);
+        } else if(value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double)value);
+        } else if(value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float)value);
+        } else if(value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean)value);
+        } else if(value instanceof Bundle) {
+            out.writeByte(TYPE_BUNDLE);
+            writeBundle(out, (Bundle)value);
+        } else if(value instanceof List) {
+            List list = (List)value;
+            out.writeByte(TYPE_LIST);
+            out.writeInt(list.size());
+            for(Object o : list) writeValue(out, o);
+        } else {
+            out.writeByte(TYPE_NULL);
+        }
+    }
+
+    private static Object readValue(DataInput in) throws IOException {
+        byte type = in.readByte();
+
+        switch(type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_BUNDLE:
+                return readBundle(in);
+            case TYPE_LIST:
+                int size = in.readInt();
+                ArrayList<Object> list = new ArrayList<>(size);
+
+                for(int i = 0; i < size; i++) list.add(readValue(in));
+
+                return list;
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.guichaguri.trackplayer.service.persistence;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the last options passed to setupPlayer, so the player can be built before JS asks for it
+ * @author Drazail
+ */
+public final class OptionsStore {
+
+    private static final int MAGIC = 0x54504f31; // TPO1
+    private static final String FILE_NAME = "TrackPlayerOptions";
+
+    private OptionsStore() {}
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public static Bundle read(Context context) {
+        File file = getFile(context);
+        if(!file.exists()) return null;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC) return null;
+
+            return BundleCodec.readBundle(in);
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't read the player options", ex);
+            file.delete();
+            return null;
+        }
+    }
+
+    public static void write(Context context, Bundle options) {
+        File file = getFile(context);
+        File temp = new File(file.getPath() + ".tmp");
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            BundleCodec.writeBundle(out, options);
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't write the player options", ex);
+            temp.delete();
+            return;
+        }
+
+        if(!temp.renameTo(file)) temp.delete();
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.guichaguri.trackplayer.service.persistence;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small snapshot of the player, used to resume the playback from a media button after the process was killed.
+ *
+ * Only a window of the queue around the current track is stored, so it can be read right away.
+ * @author Drazail
+ */
+public class PlaybackSnapshot {
+
+    private static final int MAGIC = 0x54505331; // TPS1
+    private static final String FILE_NAME = "TrackPlayerSnapshot";
+
+    public static final int TRACKS_BEFORE = 5;
+    public static final int TRACKS_AFTER = 20;
+
+    public Bundle playerOptions;
+    public Bundle metadataOptions;
+    public List<Bundle> tracks;
+    public int index;
+    public long position;
+
+    public PlaybackSnapshot(Bundle playerOptions, Bundle metadataOptions, List<Bundle> queue, int current, long position) {
+        int from = Math.max(current - TRACKS_BEFORE, 0);
+        int to = Math.min(current + TRACKS_AFTER + 1, queue.size());
+
+        this.playerOptions = playerOptions;
+        this.metadataOptions = metadataOptions;
+        this.tracks = new ArrayList<>(queue.subList(from, to));
+        this.index = current - from;
+        this.position = position;
+    }
+
+    private PlaybackSnapshot() {
+
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public static void delete(Context context) {
+        getFile(context).delete();
+    }
+
+    public static PlaybackSnapshot read(Context context) {
+        File file = getFile(context);
+        if(!file.exists()) return null;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC) return null;
+
+            PlaybackSnapshot snapshot = new PlaybackSnapshot();
+            snapshot.playerOptions = BundleCodec.readBundle(in);
+            snapshot.metadataOptions = BundleCodec.readBundle(in);
+            snapshot.index = in.readInt();
+            snapshot.position = in.readLong();
+
+            int size = in.readInt();
+            snapshot.tracks = new ArrayList<>(size);
+
+            for(int i = 0; i < size; i++) {
+                snapshot.tracks.add(BundleCodec.readBundle(in));
+            }
+
+            return snapshot;
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't read the playback snapshot", ex);
+            file.delete();
+            return null;
+        }
+    }
+
+    public void write(Context context) {
+        File file = getFile(context);
+        File temp = new File(file.getPath() + ".tmp");
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            BundleCodec.writeBundle(out, playerOptions);
+            BundleCodec.writeBundle(out, metadataOptions);
+            out.writeInt(index);
+            out.writeLong(position);
+            out.writeInt(tracks.size());
+
+            for(Bundle track : tracks) {
+                BundleCodec.writeBundle(out, track);
+            }
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't write the playback snapshot", ex);
+            temp.delete();
+            return;
+        }
+
+        // Replace the old snapshot atomically, so a crash never leaves a half-written file
+        if(!temp.renameTo(file)) temp.delete();
+    }
+
+}
@@ -0,0 +1,493 @@
+package com.guichaguri.trackplayer.service.persistence;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Persists the queue and the current position as an append-only journal.
+ *
+ * Every queue mutation is appended as a small record, so big queues are never rewritten when a single track changes.
+ * The journal is compacted in the background once it has too many records, and position checkpoints are only
+ * flushed along with other records or when the playback pauses.
+ *
+ * All public methods can be called from the playback thread. The disk work is done in the disk thread of the manager,
+ * so a journal that replaces another one only opens the file once the previous one is done with it.
+ * @author Drazail
+ */
+public class QueueJournal {
+
+    public static class State {
+        public final List<Bundle> tracks = new ArrayList<>();
+        public int index = -1;
+        public long position = 0;
+    }
+
+    public interface Callback {
+        void onLoaded(State state);
+    }
+
+    private static final int MAGIC = 0x54504a31; // TPJ1
+    private static final String FILE_NAME = "TrackPlayerQueue";
+
+    private static final byte OP_RESET = 0;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_MOVES = 3;
+    private static final byte OP_UPDATE = 4;
+    private static final byte OP_TRUNCATE = 5;
+    private static final byte OP_CURRENT = 6;
+    private static final byte OP_POSITION = 7;
+
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    private final File file;
+    private final ExecutorService executor;
+
+    // Everything below is only accessed from the executor thread
+    private final State state = new State();
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBuffer);
+    private DataOutputStream out;
+    private int records = 0;
+    private boolean opened = false;
+    private boolean adopted = false;
+
+    /**
+     * @param executor The single thread executor that runs all the disk work of the journals
+     */
+    public QueueJournal(Context context, ExecutorService executor) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        this.executor = executor;
+    }
+
+    /**
+     * Reads the persisted queue in a single pass
+     * @param handler The handler that will receive the callback
+     */
+    public void load(Handler handler, Callback callback) {
+        execute(() -> {
+            open();
+
+            State copy = new State();
+            copy.tracks.addAll(state.tracks);
+            copy.index = state.index;
+            copy.position = state.position;
+
+            handler.post(() -> callback.onLoaded(copy));
+        });
+    }
+
+    /**
+     * Marks the persisted queue as the current one.
+     * Until then, the first mutation discards the persisted queue, as the player started with an empty queue.
+     */
+    public void adopt() {
+        execute(() -> adopted = true);
+    }
+
+    public void reset() {
+        execute(() -> {
+            if(!prepareWrite(true)) return;
+
+            applyReset();
+            write(OP_RESET, true);
+        });
+    }
+
+    public void add(int index, List<Bundle> tracks) {
+        execute(() -> {
+            if(!prepareWrite(true)) return;
+
+            try {
+                record.writeInt(index);
+                record.writeInt(tracks.size());
+                for(Bundle track : tracks) BundleCodec.writeBundle(record, track);
+            } catch(IOException ex) {
+                // Never thrown by the in-memory stream
+            }
+
+            applyAdd(index, tracks);
+            write(OP_ADD, true);
+        });
+    }
+
+    public void remove(int index) {
+        execute(() -> {
+            if(!prepareWrite(true)) return;
+
+            try {
+                record.writeInt(index);
+            } catch(IOException ex) {
+                // Never thrown by the in-memory stream
+            }
+
+            applyRemove(index);
+            write(OP_REMOVE, true);
+        });
+    }
+
+    /**
+     * Records a batch of moves
+     * @param moves Pairs of indexes, from and to, in the order they were applied
+     */
+    public void moves(int[] moves) {
+        execute(() -> {
+            if(!prepareWrite(true)) return;
+
+            try {
+                record.writeInt(moves.length / 2);
+                for(int index : moves) record.writeInt(index);
+            } catch(IOException ex) {
+                // Never thrown by the in-memory stream
+            }
+
+            for(int i = 0; i + 1 < moves.length; i += 2) applyMove(moves[i], moves[i + 1]);
+            write(OP_MOVES, true);
+        });
+    }
+
+    public void update(int index, Bundle track) {
+        execute(() -> {
+            if(!prepareWrite(true)) return;
+
+            try {
+                record.writeInt(index);
+                BundleCodec.writeBundle(record, track);
+            } catch(IOException ex) {
+                // Never thrown by the in-memory stream
+            }
+
+            if(index >= 0 && index < state.tracks.size()) state.tracks.set(index, track);
+            write(OP_UPDATE, true);
+        });
+    }
+
+    public void truncate(int size) {
+        execute(() -> {
+            if(!prepareWrite(true)) return;
+
+            try {
+                record.writeInt(size);
+            } catch(IOException ex) {
+                // Never thrown by the in-memory stream
+            }
+
+            applyTruncate(size);
+            write(OP_TRUNCATE, true);
+        });
+    }
+
+    public void current(int index, long position) {
+        execute(() -> {
+            if(!prepareWrite(false)) return;
+
+            try {
+                record.writeInt(index);
+                record.writeLong(position);
+            } catch(IOException ex) {
+                // Never thrown by the in-memory stream
+            }
+
+            state.index = index;
+            state.position = position;
+            write(OP_CURRENT, true);
+        });
+    }
+
+    /**
+     * Records the current position
+     * @param flush Whether it should be written to disk now, otherwise it will be written with the next flush
+     */
+    public void checkpoint(long position, boolean flush) {
+        execute(() -> {
+            if(!prepareWrite(false) || state.position == position) return;
+
+            try {
+                record.writeLong(position);
+            } catch(IOException ex) {
+                // Never thrown by the in-memory stream
+            }
+
+            state.position = position;
+            write(OP_POSITION, flush);
+        });
+    }
+
+    /**
+     * Closes the file, the records sent afterwards are ignored
+     */
+    public void close() {
+        execute(() -> {
+            // Keeps a later record from opening the file again
+            opened = true;
+
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException ex) {
+                    Log.w(Utils.LOG, "Couldn't close the queue journal", ex);
+                }
+                out = null;
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        if(!executor.isShutdown()) executor.execute(task);
+    }
+
+    private void applyReset() {
+        state.tracks.clear();
+        state.index = -1;
+        state.position = 0;
+    }
+
+    private void applyAdd(int index, List<Bundle> tracks) {
+        state.tracks.addAll(index, tracks);
+        if(state.index >= index) state.index += tracks.size();
+    }
+
+    private void applyRemove(int index) {
+        state.tracks.remove(index);
+        if(index < state.index) state.index--;
+    }
+
+    private void applyMove(int from, int to) {
+        state.tracks.add(to, state.tracks.remove(from));
+
+        if(from == state.index) {
+            state.index = to;
+        } else if(from < state.index && to >= state.index) {
+            state.index--;
+        } else if(from > state.index && to <= state.index) {
+            state.index++;
+        }
+    }
+
+    private void applyTruncate(int size) {
+        while(state.tracks.size() > size) state.tracks.remove(state.tracks.size() - 1);
+        if(state.index >= size) state.index = size - 1;
+    }
+
+    /**
+     * Opens the journal and discards the persisted queue if it wasn't adopted
+     * @param mutation Whether the record changes the queue
+     * @return Whether the journal is ready to be written
+     */
+    private boolean prepareWrite(boolean mutation) {
+        open();
+        recordBuffer.reset();
+
+        if(!adopted) {
+            // Position updates are ignored until the persisted queue is either restored or replaced
+            if(!mutation) return false;
+            adopted = true;
+
+            if(!state.tracks.isEmpty()) {
+                applyReset();
+                write(OP_RESET, false);
+            }
+        }
+
+        return out != null;
+    }
+
+    private void write(byte op, boolean flush) {
+        if(out == null) return;
+
+        try {
+            out.writeInt(recordBuffer.size() + 1);
+            out.writeByte(op);
+            recordBuffer.writeTo(out);
+            if(flush) out.flush();
+            records++;
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't write to the queue journal", ex);
+        } finally {
+            recordBuffer.reset();
+        }
+
+        // Compacts once the records clearly outnumber the tracks
+        if(records > COMPACT_MIN_RECORDS && records > state.tracks.size() * 2) compact();
+    }
+
+    private void open() {
+        if(opened) return;
+        opened = true;
+
+        long validLength = replay();
+
+        try {
+            if(validLength < 0) {
+                // Starts a new journal
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                out.writeInt(MAGIC);
+                out.flush();
+                records = 0;
+            } else {
+                // Drops any record that was only partially written
+                if(validLength < file.length()) {
+                    try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.setLength(validLength);
+                    }
+                }
+
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            }
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't open the queue journal", ex);
+            out = null;
+        }
+    }
+
+    /**
+     * Replays the journal into the state
+     * @return The length of the valid part of the file, or -1 when there is no valid journal
+     */
+    private long replay() {
+        if(!file.exists()) return -1;
+
+        long length = 4;
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC) return -1;
+
+            while(true) {
+                int size;
+
+                try {
+                    size = in.readInt();
+                } catch(EOFException ex) {
+                    break;
+                }
+
+                byte[] data = new byte[size];
+                in.readFully(data);
+
+                replayRecord(new DataInputStream(new ByteArrayInputStream(data)));
+                length += 4 + size;
+                records++;
+            }
+        } catch(IOException | RuntimeException ex) {
+            // The last record was torn or invalid, we'll keep everything before it
+            Log.w(Utils.LOG, "The queue journal was truncated", ex);
+        }
+
+        return length;
+    }
+
+    private void replayRecord(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+
+        switch(op) {
+            case OP_RESET:
+                applyReset();
+                break;
+            case OP_ADD:
+                int index = in.readInt();
+                int count = in.readInt();
+                List<Bundle> tracks = new ArrayList<>(count);
+
+                for(int i = 0; i < count; i++) tracks.add(BundleCodec.readBundle(in));
+
+                applyAdd(index, tracks);
+                break;
+            case OP_REMOVE:
+                applyRemove(in.readInt());
+                break;
+            case OP_MOVES:
+                int moves = in.readInt();
+
+                for(int i = 0; i < moves; i++) applyMove(in.readInt(), in.readInt());
+                break;
+            case OP_UPDATE:
+                state.tracks.set(in.readInt(), BundleCodec.readBundle(in));
+                break;
+            case OP_TRUNCATE:
+                applyTruncate(in.readInt());
+                break;
+            case OP_CURRENT:
+                state.index = in.readInt();
+                state.position = in.readLong();
+                break;
+            case OP_POSITION:
+                state.position = in.readLong();
+                break;
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    /**
+     * Rewrites the journal as a single snapshot of the queue
+     */
+    private void compact() {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try(FileOutputStream stream = new FileOutputStream(temp)) {
+            DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(stream));
+
+            recordBuffer.reset();
+            record.writeInt(0);
+            record.writeInt(state.tracks.size());
+            for(Bundle track : state.tracks) BundleCodec.writeBundle(record, track);
+
+            compacted.writeInt(MAGIC);
+            compacted.writeInt(recordBuffer.size() + 1);
+            compacted.writeByte(OP_ADD);
+            recordBuffer.writeTo(compacted);
+
+            recordBuffer.reset();
+            record.writeInt(state.index);
+            record.writeLong(state.position);
+
+            compacted.writeInt(recordBuffer.size() + 1);
+            compacted.writeByte(OP_CURRENT);
+            recordBuffer.writeTo(compacted);
+
+            compacted.flush();
+            stream.getFD().sync();
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't compact the queue journal", ex);
+            temp.delete();
+            return;
+        } finally {
+            recordBuffer.reset();
+        }
+
+        try {
+            out.close();
+        } catch(IOException ex) {
+            // The compacted journal already has everything
+        }
+
+        try {
+            if(!temp.renameTo(file)) throw new IOException("Couldn't replace the journal");
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            records = 2;
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't reopen the queue journal", ex);
+            out = null;
+        }
+    }
+
+}
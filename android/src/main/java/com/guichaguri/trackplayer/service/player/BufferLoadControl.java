@@ -0,0 +1,92 @@
+package com.guichaguri.trackplayer.service.player;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+
+/**
+ * A load control which buffer durations can be changed after the player is created.
+ *
+ * The back buffer is only read once by the player, so it can't be changed.
+ * @author Drazail
+ */
+public class BufferLoadControl implements LoadControl {
+
+    private final DefaultAllocator allocator = new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE);
+    private final int backBuffer;
+
+    private volatile DefaultLoadControl control;
+
+    public BufferLoadControl(int backBuffer) {
+        this.backBuffer = backBuffer;
+        setBufferDurations(DefaultLoadControl.DEFAULT_MIN_BUFFER_MS, DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
+                DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS, DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS);
+    }
+
+    public int getBackBuffer() {
+        return backBuffer;
+    }
+
+    /**
+     * Replaces the buffer durations. Should only be called while the queue is empty.
+     */
+    public void setBufferDurations(int minBuffer, int maxBuffer, int playBuffer, int rebufferBuffer) {
+        // The allocator is shared, so the buffers already allocated are kept
+        control = new DefaultLoadControl.Builder()
+                .setAllocator(allocator)
+                .setBufferDurationsMs(minBuffer, maxBuffer, playBuffer, rebufferBuffer)
+                .setBackBuffer(backBuffer, false)
+                .createDefaultLoadControl();
+    }
+
+    @Override
+    public void onPrepared() {
+        control.onPrepared();
+    }
+
+    @Override
+    public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+        control.onTracksSelected(renderers, trackGroups, trackSelections);
+    }
+
+    @Override
+    public void onStopped() {
+        control.onStopped();
+    }
+
+    @Override
+    public void onReleased() {
+        control.onReleased();
+    }
+
+    @Override
+    public Allocator getAllocator() {
+        return allocator;
+    }
+
+    @Override
+    public long getBackBufferDurationUs() {
+        return control.getBackBufferDurationUs();
+    }
+
+    @Override
+    public boolean retainBackBufferFromKeyframe() {
+        return control.retainBackBufferFromKeyframe();
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long bufferedDurationUs, float playbackSpeed) {
+        return control.shouldContinueLoading(bufferedDurationUs, playbackSpeed);
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, float playbackSpeed, boolean rebuffering) {
+        return control.shouldStartPlayback(bufferedDurationUs, playbackSpeed, rebuffering);
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheKeyFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadataMutations;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expires cached keys after their time-to-live. The expiry date is stored in the content metadata of each key,
+ * it's set when a key without one is first read and removed along with the last span of the key.
+ *
+ * Expired keys are removed right before they're read again, so they're fetched from the network,
+ * and swept in background in small batches.
+ * @author Drazail
+ */
+public class CacheExpiry {
+
+    private static final String METADATA_EXPIRES = "tp-expires";
+    private static final int BATCH_SIZE = 64;
+
+    private final Cache cache;
+    private final CacheKeyFactory cacheKeys;
+
+    // The keys being swept and the position in them, only used by the sweep thread
+    private List<String> sweepKeys;
+    private int sweepIndex = 0;
+
+    public CacheExpiry(Cache cache, CacheKeyFactory cacheKeys) {
+        this.cache = cache;
+        this.cacheKeys = cacheKeys;
+    }
+
+    /**
+     * Wraps a source that reads from the cache, so expired keys are removed before they're read
+     * @param ttl The time-to-live in milliseconds of the keys read, or 0 to keep them forever
+     */
+    public DataSource.Factory wrap(DataSource.Factory upstream, long ttl) {
+        return () -> new ExpiringDataSource(upstream.createDataSource(), ttl);
+    }
+
+    /**
+     * Gets the date in milliseconds the key expires at, or {@link C#TIME_UNSET} when it never expires
+     */
+    public long getExpiry(String key) {
+        return cache.getContentMetadata(key).get(METADATA_EXPIRES, C.TIME_UNSET);
+    }
+
+    /**
+     * Removes the key when it expired, and starts its time-to-live when it has none yet
+     */
+    private void check(String key, long ttl) throws IOException {
+        long expiry = getExpiry(key);
+        long now = System.currentTimeMillis();
+
+        if(expiry != C.TIME_UNSET && expiry <= now) {
+            Log.d(Utils.LOG, "cache: " + key + " expired, it will be fetched again");
+            CacheUtil.remove(cache, key);
+            expiry = C.TIME_UNSET;
+        }
+
+        if(expiry == C.TIME_UNSET && ttl > 0) {
+            ContentMetadataMutations mutations = new ContentMetadataMutations();
+            mutations.set(METADATA_EXPIRES, now + ttl);
+            cache.applyContentMetadataMutations(key, mutations);
+        }
+    }
+
+    /**
+     * Removes the expired keys of the next batch. Should only be called from a single background thread.
+     * @param skipped The keys that shouldn't be removed, such as the current track
+     * @return Whether there are more keys to sweep
+     */
+    public boolean sweep(Collection<String> skipped) {
+        if(sweepKeys == null) {
+            sweepKeys = new ArrayList<>(cache.getKeys());
+            sweepIndex = 0;
+        }
+
+        long now = System.currentTimeMillis();
+        int end = Math.min(sweepIndex + BATCH_SIZE, sweepKeys.size());
+        int removed = 0;
+
+        for(; sweepIndex < end; sweepIndex++) {
+            String key = sweepKeys.get(sweepIndex);
+            long expiry = getExpiry(key);
+
+            if(expiry == C.TIME_UNSET || expiry > now || skipped.contains(key)) continue;
+
+            CacheUtil.remove(cache, key);
+            removed++;
+        }
+
+        if(removed > 0) Log.d(Utils.LOG, "cache: swept " + removed + " expired keys");
+
+        if(sweepIndex < sweepKeys.size()) return true;
+
+        sweepKeys = null;
+        return false;
+    }
+
+    private class ExpiringDataSource implements DataSource {
+
+        private final DataSource upstream;
+        private final long ttl;
+
+        private ExpiringDataSource(DataSource upstream, long ttl) {
+            this.upstream = upstream;
+            this.ttl = ttl;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            upstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            check(cacheKeys.buildCacheKey(dataSpec), ttl);
+            return upstream.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return upstream.read(buffer, offset, readLength);
+        }
+
+        @Override
+        public Uri getUri() {
+            return upstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return upstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            upstream.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheKeyFactory;
+import com.guichaguri.trackplayer.service.models.Track;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds the cache keys without the query parameters that change on every request, such as signatures.
+ *
+ * It's used for every source type, so the segments of adaptive streams also hit the same cached bytes.
+ * @author Drazail
+ */
+public class CacheKeyNormalizer implements CacheKeyFactory {
+
+    private volatile Set<String> ignoredParams = Collections.emptySet();
+
+    /**
+     * Replaces the query parameters that are removed from the keys
+     */
+    public void setIgnoredParams(Collection<String> params) {
+        ignoredParams = params == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(params));
+    }
+
+    /**
+     * Gets the key used to store the track in the cache
+     */
+    public String getKey(Track track) {
+        return track.key != null ? track.key : normalize(track.uri);
+    }
+
+    @Override
+    public String buildCacheKey(DataSpec dataSpec) {
+        return dataSpec.key != null ? dataSpec.key : normalize(dataSpec.uri);
+    }
+
+    /**
+     * Removes the ignored parameters from the query, keeping the order of the others
+     */
+    public String normalize(Uri uri) {
+        Set<String> ignored = ignoredParams;
+        String query = uri.getEncodedQuery();
+
+        if(ignored.isEmpty() || query == null) return uri.toString();
+
+        StringBuilder normalized = new StringBuilder();
+
+        for(String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            String name = Uri.decode(separator == -1 ? param : param.substring(0, separator));
+
+            if(ignored.contains(name)) continue;
+
+            if(normalized.length() > 0) normalized.append('&');
+            normalized.append(param);
+        }
+
+        return uri.buildUpon().encodedQuery(normalized.length() > 0 ? normalized.toString() : null).build().toString();
+    }
+
+}
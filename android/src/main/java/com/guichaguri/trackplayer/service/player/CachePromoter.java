@@ -0,0 +1,63 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DummyDataSource;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadataMutations;
+import java.io.IOException;
+
+/**
+ * Copies fully cached tracks from the streaming tier to the persistent tier, without touching the network
+ * @author Drazail
+ */
+public final class CachePromoter {
+
+    private CachePromoter() {}
+
+    /**
+     * Gets how many bytes of the key are cached
+     */
+    public static long getCachedBytes(Cache cache, String key) {
+        long bytes = 0;
+        for(CacheSpan span : cache.getCachedSpans(key)) bytes += span.length;
+        return bytes;
+    }
+
+    /**
+     * Copies a key to the persistent tier and removes it from the streaming tier
+     * @param maxSize The size limit of the persistent tier, or 0 when unlimited
+     * @return Whether the key was promoted. Keys that aren't fully cached or don't fit are skipped.
+     */
+    public static boolean promote(Cache streaming, Cache persistent, String key, long maxSize)
+            throws IOException, InterruptedException {
+        long length = ContentMetadata.getContentLength(streaming.getContentMetadata(key));
+
+        // Only complete tracks are promoted, as the missing parts can't be read
+        if(length == C.LENGTH_UNSET || !streaming.isCached(key, 0, length)) return false;
+
+        long missing = length - getCachedBytes(persistent, key);
+        if(missing <= 0) return true;
+        if(maxSize > 0 && persistent.getCacheSpace() + missing > maxSize) return false;
+
+        // Reads through the streaming tier, any miss fails instead of going to the network
+        CacheDataSource source = new CacheDataSource(persistent, new CacheDataSource(streaming, DummyDataSource.INSTANCE));
+        DataSpec spec = new DataSpec(Uri.parse(key), 0, length, key);
+
+        CacheUtil.cache(spec, persistent, null, source, new byte[CacheUtil.DEFAULT_BUFFER_SIZE_BYTES],
+                null, 0, null, null, false);
+
+        ContentMetadataMutations mutations = new ContentMetadataMutations();
+        ContentMetadataMutations.setContentLength(mutations, length);
+        persistent.applyContentMetadataMutations(key, mutations);
+
+        CacheUtil.remove(streaming, key);
+        return true;
+    }
+
+}
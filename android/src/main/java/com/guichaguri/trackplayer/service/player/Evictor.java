@@ -2,48 +2,281 @@ package com.guichaguri.trackplayer.service.player;
 
 
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.CacheKeyFactory;
 import com.google.android.exoplayer2.upstream.cache.CacheEvictor;
 import com.google.android.exoplayer2.upstream.cache.Cache;
-import com.google.android.exoplayer2.upstream.cache.CacheKeyFactory;
 import com.google.android.exoplayer2.upstream.cache.CacheSpan;
-import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
 import com.guichaguri.trackplayer.module.MusicEvents;
 import com.guichaguri.trackplayer.service.MusicService;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.persistence.BundleCodec;
 
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
-import android.util.Pair;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Evicts the least recently used spans, or whole tracks when track eviction is enabled.
+ * With the frequency-aware policy, the least played key among the oldest candidates is evicted instead,
+ * so a binge of new tracks doesn't flush the ones in heavy rotation.
+ *
+ * With a head size set, the remainder of every track is evicted before any head, so the tracks that were
+ * recently seen can still start from local bytes.
+ *
+ * With a minimum free space set, the size limit shrinks when the disk runs low, down to the minimum size,
+ * and grows back up to the max size when space is freed.
+ *
+ * The key being loaded, the keys with open readers, the keys protected by the playback and the keys pinned by JS
+ * are never evicted. The cache calls this evictor from its loader threads, so the key sets are replaced instead
+ * of modified, and the eviction itself runs in a background thread that holds the cache lock.
  * @author Drazail
  */
 
 public final class Evictor implements CacheEvictor, Comparator<CacheSpan> {
+    // The cached event is only sent again after this much progress
+    private static final double PERCENT_STEP = 5;
+    private static final long BYTES_STEP = 1024 * 1024;
+
+    private static final String PINNED_FILE = "TrackPlayerPinnedKeys";
+    private static final String SKETCH_FILE = "TrackPlayerFrequencySketch";
+    private static final int SKETCH_MAGIC = 0x54504653; // TPFS
+    private static final int SKETCH_WIDTH = 1024;
+    private static final int SKETCH_WRITE_INTERVAL = 32; // Plays between each sketch write
+
+    // How many of the least recently used candidates are compared by the frequency-aware policy
+    private static final int SAMPLE_SIZE = 8;
+
+    // How often the free space is checked while the cache is written
+    private static final long LIMIT_CHECK_INTERVAL_MS = 10000;
+
     private final MusicService service;
     private final long maxBytes;
+    private final File cacheDir;
     private final TreeSet<CacheSpan> leastRecentlyUsed;
+    private final File pinnedFile;
+    private final File sketchFile;
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService evictExecutor = Executors.newSingleThreadExecutor();
+    private final FrequencySketch sketch = new FrequencySketch(SKETCH_WIDTH);
+
+    // Last touch timestamp per key, used to evict whole tracks
+    private final Map<String, Long> keyTouched = new HashMap<>();
+
+    private volatile boolean trackEviction = false;
+    private volatile boolean frequencyAware = false;
+    private volatile long headSize = 0;
+    private volatile Set<String> pinnedKeys;
+    private volatile Set<String> protectedKeys = Collections.emptySet();
+    private volatile String loadingKey;
+    private volatile boolean released = false;
+
+    // How many readers each key has open, the readers are opened and closed in the loader threads
+    private final Map<String, Integer> openReaders = new HashMap<>();
+
+    // The space the loaders asked for since the last eviction, -1 when no eviction is scheduled
+    private final AtomicLong pendingSpace = new AtomicLong(-1);
+
+    // The adaptive limit bounds. The limit itself is only updated under the cache lock.
+    private volatile long minBytes = 0;
+    private volatile long minFreeSpace = 0;
+    private volatile long limit;
+    private volatile boolean limitStale = true;
+    private long limitChecked = 0;
+
+    // Cached bytes per key, kept up to date as spans are added and removed.
+    // It's sorted so it can be paged, and it's locked as it is also read from the main thread.
+    private final TreeMap<String, Long> cachedBytes = new TreeMap<>();
+    private final Map<String, Long> emittedBytes = new HashMap<>();
 
     private long currentSize;
+    private boolean initialized = false;
 
-    public Evictor(MusicService service, long maxBytes) {
+    private int unsavedPlays = 0;
+
+    // Metrics of this session. The plays are counted in the main thread, the evictions under the cache lock.
+    private volatile long requests = 0;
+    private volatile long hits = 0;
+    private volatile long evictions = 0;
+    private volatile long evictedBytes = 0;
+
+    public Evictor(MusicService service, long maxBytes, File cacheDir) {
         this.service = service;
         this.maxBytes = maxBytes;
+        this.limit = maxBytes;
+        this.cacheDir = cacheDir;
         this.leastRecentlyUsed = new TreeSet<>(this);
+        this.pinnedFile = new File(service.getFilesDir(), PINNED_FILE);
+        this.sketchFile = new File(service.getFilesDir(), SKETCH_FILE);
+        this.pinnedKeys = readPinnedKeys();
+        readSketch();
+    }
+
+    /**
+     * Sets whether whole tracks should be evicted instead of single spans
+     */
+    public void setTrackEviction(boolean trackEviction) {
+        this.trackEviction = trackEviction;
+    }
+
+    /**
+     * Sets whether the least played keys should be evicted first, instead of the least recently used ones
+     */
+    public void setFrequencyAware(boolean frequencyAware) {
+        this.frequencyAware = frequencyAware;
+    }
+
+    /**
+     * Sets how many bytes at the start of each track are evicted last, or 0 to treat every byte equally
+     */
+    public void setHeadSize(long headSize) {
+        this.headSize = headSize;
+    }
+
+    /**
+     * Sets the bounds of the size limit, which adapts to the free space of the cache volume
+     * @param minBytes The size the limit never shrinks below
+     * @param minFreeSpace How many bytes should be left free on the volume, or 0 to always use the max size
+     */
+    public void setAdaptiveLimit(long minBytes, long minFreeSpace) {
+        this.minBytes = minBytes;
+        this.minFreeSpace = minFreeSpace;
+        this.limitStale = true;
+    }
+
+    /**
+     * Gets the hit ratio and eviction metrics since the cache was opened
+     */
+    public Bundle getStats() {
+        long requests = this.requests;
+        long hits = this.hits;
+
+        Bundle bundle = new Bundle();
+        bundle.putString("policy", frequencyAware ? "lfu" : "lru");
+        bundle.putDouble("requests", requests);
+        bundle.putDouble("hits", hits);
+        bundle.putDouble("hitRatio", requests == 0 ? 0 : (double)hits / requests);
+        bundle.putDouble("evictions", evictions);
+        bundle.putDouble("evictedBytes", evictedBytes);
+        return bundle;
+    }
+
+    /**
+     * Replaces the keys that are never evicted, such as favorites and downloads. The keys are persisted.
+     */
+    public void setPinnedKeys(Collection<String> keys) {
+        Set<String> pinned = Collections.unmodifiableSet(new HashSet<>(keys));
+        pinnedKeys = pinned;
+
+        if(!writeExecutor.isShutdown()) {
+            writeExecutor.execute(() -> writePinnedKeys(pinned));
+        }
+    }
+
+    public Set<String> getPinnedKeys() {
+        return pinnedKeys;
+    }
+
+    /**
+     * Replaces the keys the playback is about to use, such as the upcoming tracks
+     */
+    public void setProtectedKeys(Collection<String> keys) {
+        protectedKeys = Collections.unmodifiableSet(new HashSet<>(keys));
+    }
 
+    /**
+     * Wraps a source that reads from the cache, so the keys it's reading aren't evicted
+     */
+    public DataSource.Factory trackReaders(DataSource.Factory upstream, CacheKeyFactory cacheKeys) {
+        return () -> new ReaderDataSource(upstream.createDataSource(), cacheKeys);
+    }
+
+    /**
+     * Should be called before the cache is released
+     */
+    public void release() {
+        released = true;
+        evictExecutor.shutdown();
+
+        if(!writeExecutor.isShutdown()) {
+            writeExecutor.execute(this::writeSketch);
+            writeExecutor.shutdown();
+        }
+    }
+
+    private boolean isProtected(String key) {
+        if(key.equals(loadingKey) || protectedKeys.contains(key) || pinnedKeys.contains(key)) return true;
+
+        synchronized(openReaders) {
+            return openReaders.containsKey(key);
+        }
+    }
+
+    private void addReader(String key, int count) {
+        synchronized(openReaders) {
+            Integer readers = openReaders.get(key);
+            int total = (readers == null ? 0 : readers) + count;
+
+            if(total > 0) {
+                openReaders.put(key, total);
+            } else {
+                openReaders.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Evicts in the background thread, so the loader that called the evictor doesn't wait for the file deletes.
+     * The requests made before the eviction runs are merged into a single one.
+     */
+    private void scheduleEviction(Cache cache, long requiredSpace) {
+        boolean limitExpired = limitStale
+                || (minFreeSpace > 0 && SystemClock.elapsedRealtime() - limitChecked >= LIMIT_CHECK_INTERVAL_MS);
+        if(currentSize + requiredSpace <= limit && !limitExpired) return;
+
+        if(pendingSpace.getAndAccumulate(requiredSpace, Math::max) != -1 || evictExecutor.isShutdown()) return;
+
+        evictExecutor.execute(() -> {
+            synchronized(cache) {
+                if(released) return;
+                evictCache(cache, pendingSpace.getAndSet(-1));
+            }
+        });
     }
 
     @Override
@@ -54,6 +287,7 @@ public final class Evictor implements CacheEvictor, Comparator<CacheSpan> {
     @Override
     public void onCacheInitialized() {
         Log.d(Utils.LOG, "cache initialized");
+        initialized = true;
 
     }
 
@@ -61,8 +295,10 @@ public final class Evictor implements CacheEvictor, Comparator<CacheSpan> {
     public void onStartFile(Cache cache, String key, long position, long length) {
         Log.d(Utils.LOG, "cache onStartFile : Cache:"+cache+"/ key: "+key+"/ position: "+ position +"/ Length: "+ length + "//");
 
+        loadingKey = key;
+
         if (length != C.LENGTH_UNSET) {
-            evictCache(cache, length);
+            scheduleEviction(cache, length);
         }
     }
 
@@ -71,8 +307,16 @@ public final class Evictor implements CacheEvictor, Comparator<CacheSpan> {
 
         Log.d(Utils.LOG, "cache onSpanAdded : Cache:"+cache+"/ CacheSpan: "+span+"//");
         leastRecentlyUsed.add(span);
-        currentSize += span.length;
-        evictCache(cache, 0);
+
+        synchronized(cachedBytes) {
+            currentSize += span.length;
+
+            Long bytes = cachedBytes.get(span.key);
+            cachedBytes.put(span.key, (bytes == null ? 0 : bytes) + span.length);
+        }
+        touchKey(span);
+
+        scheduleEviction(cache, 0);
         checkCachedStatus(span, cache);
     }
 
@@ -80,14 +324,162 @@ public final class Evictor implements CacheEvictor, Comparator<CacheSpan> {
     public void onSpanRemoved(Cache cache, CacheSpan span) {
         Log.d(Utils.LOG, "cache onSpanRemoved : Cache:"+cache+"/ CacheSpan: "+span+"//");
         leastRecentlyUsed.remove(span);
-        currentSize -= span.length;
+
+        synchronized(cachedBytes) {
+            currentSize -= span.length;
+
+            Long bytes = cachedBytes.get(span.key);
+            if(bytes == null) return;
+
+            if(bytes - span.length > 0) {
+                cachedBytes.put(span.key, bytes - span.length);
+                return;
+            }
+
+            cachedBytes.remove(span.key);
+        }
+
+        emittedBytes.remove(span.key);
+        keyTouched.remove(span.key);
     }
 
     @Override
     public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
         Log.d(Utils.LOG, "cache onSpanTouched : Cache:"+cache+"/ oldSpan: "+oldSpan+"/ newSpan: "+newSpan+"//");
-        onSpanRemoved(cache, oldSpan);
-        onSpanAdded(cache, newSpan);
+
+        // The span was only read, so the totals don't change
+        leastRecentlyUsed.remove(oldSpan);
+        leastRecentlyUsed.add(newSpan);
+        touchKey(newSpan);
+    }
+
+    /**
+     * Counts a play of the key, which is used by the frequency-aware policy and the metrics.
+     * Should only be called from the main thread.
+     * @param cached Whether the key was fully cached when the play started
+     */
+    public void recordPlay(String key, boolean cached) {
+        requests++;
+        if(cached) hits++;
+
+        sketch.increment(key);
+
+        if(++unsavedPlays >= SKETCH_WRITE_INTERVAL && !writeExecutor.isShutdown()) {
+            unsavedPlays = 0;
+            writeExecutor.execute(this::writeSketch);
+        }
+    }
+
+    private void touchKey(CacheSpan span) {
+        Long touched = keyTouched.get(span.key);
+        if(touched == null || touched < span.lastTouchTimestamp) keyTouched.put(span.key, span.lastTouchTimestamp);
+    }
+
+    /**
+     * Gets how many bytes are cached for the key
+     */
+    public long getCachedBytes(String key) {
+        synchronized(cachedBytes) {
+            Long bytes = cachedBytes.get(key);
+            return bytes == null ? 0 : bytes;
+        }
+    }
+
+    /**
+     * Gets how many bytes are cached in total
+     */
+    public long getCacheSize() {
+        synchronized(cachedBytes) {
+            return currentSize;
+        }
+    }
+
+    public long getMaxCacheSize() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the size limit currently enforced, which is lower than the max size when the disk is running low
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Evicts right away if the disk is running low, instead of waiting for the next write.
+     * It can be called from any thread, the cache holds the same lock while it calls the evictor.
+     */
+    public void trim(Cache cache) {
+        synchronized(cache) {
+            limitStale = true;
+            evictCache(cache, 0);
+        }
+    }
+
+    private void updateLimit() {
+        // The spans are still being counted while the cache initializes
+        if(!initialized) return;
+
+        long now = SystemClock.elapsedRealtime();
+        if(!limitStale && now - limitChecked < LIMIT_CHECK_INTERVAL_MS) return;
+
+        limitStale = false;
+        limitChecked = now;
+
+        long minFreeSpace = this.minFreeSpace;
+        long newLimit = maxBytes;
+
+        if(minFreeSpace > 0) {
+            // The cached bytes could be freed, so they count as available
+            long available = currentSize + cacheDir.getUsableSpace() - minFreeSpace;
+            newLimit = Math.max(Math.min(available, maxBytes), Math.min(minBytes, maxBytes));
+        }
+
+        if(newLimit != limit) {
+            Log.d(Utils.LOG, "cache limit changed from " + limit + " to " + newLimit + " bytes");
+            limit = newLimit;
+        }
+    }
+
+    public int getKeyCount() {
+        synchronized(cachedBytes) {
+            return cachedBytes.size();
+        }
+    }
+
+    /**
+     * Lists the cached keys in alphabetical order
+     * @param offset How many keys should be skipped
+     * @param limit The maximum amount of keys, or a negative number for no limit
+     */
+    public List<String> getCachedKeys(int offset, int limit) {
+        List<String> keys = new ArrayList<>();
+
+        synchronized(cachedBytes) {
+            int index = 0;
+
+            for(String key : cachedBytes.keySet()) {
+                if(limit >= 0 && keys.size() >= limit) break;
+                if(index++ >= offset) keys.add(key);
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Creates the status of a cached key, as sent by the cached event
+     */
+    public static Bundle createStatus(String key, long bytes, long length) {
+        boolean complete = length != C.LENGTH_UNSET && bytes >= length;
+
+        Bundle bundle = new Bundle();
+        bundle.putString("key", key);
+        bundle.putDouble("bytes", bytes);
+        bundle.putDouble("contentLength", length == C.LENGTH_UNSET ? -1 : length);
+        bundle.putDouble("percent", length == C.LENGTH_UNSET || length == 0 ? -1 : Math.min(bytes * 100D / length, 100));
+        bundle.putBoolean("complete", complete);
+        return bundle;
     }
 
     @Override
@@ -103,58 +495,229 @@ public final class Evictor implements CacheEvictor, Comparator<CacheSpan> {
     private void evictCache(Cache cache, long requiredSpace) {
         Log.d(Utils.LOG, "cache evictCache : Cache:"+cache+"/ requiredSpace: "+requiredSpace+"//");
 
-        while (currentSize + requiredSpace > maxBytes && !leastRecentlyUsed.isEmpty()) {
-            try {
-                cache.removeSpan(leastRecentlyUsed.first());
-            } catch (Cache.CacheException e) {
-                // do nothing.
+        long headSize = this.headSize;
+        updateLimit();
+
+        while (currentSize + requiredSpace > limit) {
+            long size = currentSize;
+
+            // The remainder of the tracks goes first, the heads are only evicted once there's nothing else
+            CacheSpan tail = headSize > 0 ? findEvictableSpan(headSize) : null;
+
+            if(tail != null) {
+                if(trackEviction) {
+                    evictSpans(cache, tail.key, headSize);
+                } else {
+                    removeSpan(cache, tail);
+                }
+            } else if(trackEviction) {
+                String key = findEvictableKey();
+                if(key == null) break;
+
+                evictSpans(cache, key, 0);
+            } else {
+                CacheSpan span = findEvictableSpan(0);
+                if(span == null) break;
+
+                removeSpan(cache, span);
+            }
+
+            // Stops when nothing could be removed, otherwise we would loop forever
+            if(currentSize == size) break;
+
+            evictions++;
+            evictedBytes += size - currentSize;
+        }
+    }
+
+    /**
+     * Finds the span to evict
+     * @param from The position spans must start at, so the heads can be skipped
+     */
+    private CacheSpan findEvictableSpan(long from) {
+        CacheSpan victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        int sampled = 0;
+
+        // The spans are in least recently used order, so ties keep the oldest one
+        for(CacheSpan span : leastRecentlyUsed) {
+            if(span.position < from || isProtected(span.key)) continue;
+            if(!frequencyAware) return span;
+
+            int frequency = sketch.frequency(span.key);
+
+            if(frequency < victimFrequency) {
+                victim = span;
+                victimFrequency = frequency;
+            }
+
+            if(++sampled >= SAMPLE_SIZE) break;
+        }
+
+        return victim;
+    }
+
+    private String findEvictableKey() {
+        if(frequencyAware) return findLeastPlayedKey();
+
+        String oldest = null;
+        long oldestTouch = Long.MAX_VALUE;
+
+        for(Map.Entry<String, Long> entry : keyTouched.entrySet()) {
+            if(entry.getValue() < oldestTouch && !isProtected(entry.getKey())) {
+                oldest = entry.getKey();
+                oldestTouch = entry.getValue();
             }
         }
+
+        return oldest;
     }
 
-    private void evictSpans(Cache cache, String key) {
+    /**
+     * Finds the least played key among the least recently used ones
+     */
+    private String findLeastPlayedKey() {
+        // Keeps the oldest candidates, with the most recent one on top
+        PriorityQueue<Map.Entry<String, Long>> candidates = new PriorityQueue<>(SAMPLE_SIZE,
+                (a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        for(Map.Entry<String, Long> entry : keyTouched.entrySet()) {
+            if(isProtected(entry.getKey())) continue;
+
+            candidates.add(entry);
+            if(candidates.size() > SAMPLE_SIZE) candidates.poll();
+        }
+
+        String victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        long victimTouch = Long.MAX_VALUE;
+
+        for(Map.Entry<String, Long> entry : candidates) {
+            int frequency = sketch.frequency(entry.getKey());
+
+            if(frequency < victimFrequency || (frequency == victimFrequency && entry.getValue() < victimTouch)) {
+                victim = entry.getKey();
+                victimFrequency = frequency;
+                victimTouch = entry.getValue();
+            }
+        }
+
+        return victim;
+    }
+
+    /**
+     * Evicts the spans of a key
+     * @param from The position spans must start at to be evicted
+     */
+    private void evictSpans(Cache cache, String key, long from) {
         Log.d(Utils.LOG, "cache evictSpans for : Cache:"+cache+"/ key: "+key+"//");
         NavigableSet<CacheSpan> spansToRemove = cache.getCachedSpans(key);
         Iterator<CacheSpan> itr = spansToRemove.iterator();
 
             try {
                 while (itr.hasNext()) {
-                    cache.removeSpan(itr.next());
+                    CacheSpan span = itr.next();
+                    if(span.position >= from) cache.removeSpan(span);
                 }
             } catch (Cache.CacheException e) {
-                // do nothing.
+                Log.w(Utils.LOG, "Couldn't evict " + key, e);
             }
     }
 
+    private void removeSpan(Cache cache, CacheSpan span) {
+        try {
+            cache.removeSpan(span);
+        } catch (Cache.CacheException e) {
+            Log.w(Utils.LOG, "Couldn't evict " + span.key, e);
+        }
+    }
+
 
     private void checkCachedStatus(CacheSpan span, Cache cache) {
+        // Spans loaded from disk on initialization aren't news
+        if(!initialized) return;
+
+        long bytes = getCachedBytes(span.key);
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(span.key));
+
+        Long emitted = emittedBytes.get(span.key);
+        long last = emitted == null ? 0 : emitted;
+        boolean complete = length != C.LENGTH_UNSET && bytes >= length;
+
+        // Throttles the event, as a big file is cached in many small spans
+        if(!complete) {
+            if(length != C.LENGTH_UNSET && length > 0) {
+                if((bytes - last) * 100D / length < PERCENT_STEP) return;
+            } else if(bytes - last < BYTES_STEP) {
+                return;
+            }
+        } else if(last >= length) {
+            return;
+        }
+
+        emittedBytes.put(span.key, bytes);
+
+        service.emit(MusicEvents.PLAYBACK_CACHED, createStatus(span.key, bytes, length));
+
+        Log.d(Utils.LOG, "cache status: " + bytes + "/" + length + " bytes cached for Key: " + span.key);
+    }
 
-       // Uri uri = Uri.parse(url);
-        //long fileSize = getFileSize(url);
-       // DataSpec dataSpec = new DataSpec(uri,0,fileSize,key);
-        // get information about what is cached for the given data spec
-       // CacheKeyFactory fac = dataSpec1 -> key;
-       // Pair<Long, Long> cachePair= CacheUtil.getCached(dataSpec, cache, fac);
+    private void readSketch() {
+        if(!sketchFile.exists()) return;
 
-        //long requestedBytes = cachePair.first;
-        //long cachedBytes = cachePair.second;
-        Long cachedBytes = Long.valueOf(0);
-        NavigableSet<CacheSpan> cahcedSpans = cache.getCachedSpans(span.key);
-        for (CacheSpan cachedSpan : cahcedSpans){
-            cachedBytes += cachedSpan.length;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sketchFile)))) {
+            if(in.readInt() != SKETCH_MAGIC || !sketch.read(in)) {
+                Log.w(Utils.LOG, "Ignoring an incompatible frequency sketch");
+            }
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't read the frequency sketch", ex);
         }
-        Bundle bundle = new Bundle();
-        //bundle.putString("url", url);
-        bundle.putString("key", span.key);
-        bundle.putString("spanIsCached", String.valueOf(span.isCached));
-        bundle.putString("bytes cached", String.valueOf(cachedBytes));
-        //bundle.putString("content-length",  Long.toString(fileSize));
-        //bundle.putString("cached", Long.toString(cachedBytes));
-        //bundle.putString("requestedBytes",  Long.toString(requestedBytes));
-        service.emit(MusicEvents.PLAYBACK_CACHED, bundle);
-        Log.d(Utils.LOG, "cached");
+    }
+
+    private void writeSketch() {
+        File temp = new File(sketchFile.getPath() + ".tmp");
 
-        Log.d(Utils.LOG, "cache cachePair : Cache:"+span.isCached+" total cached bytes: "+cachedBytes+" for Key: "+span.key+"//");
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(SKETCH_MAGIC);
+            sketch.write(out);
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't write the frequency sketch", ex);
+            temp.delete();
+            return;
+        }
+
+        if(!temp.renameTo(sketchFile)) temp.delete();
+    }
+
+    private Set<String> readPinnedKeys() {
+        if(!pinnedFile.exists()) return Collections.emptySet();
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pinnedFile)))) {
+            int size = in.readInt();
+            Set<String> keys = new HashSet<>(size);
+
+            for(int i = 0; i < size; i++) keys.add(BundleCodec.readString(in));
+
+            return Collections.unmodifiableSet(keys);
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't read the pinned cache keys", ex);
+            return Collections.emptySet();
+        }
+    }
+
+    private void writePinnedKeys(Set<String> keys) {
+        File temp = new File(pinnedFile.getPath() + ".tmp");
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(keys.size());
+            for(String key : keys) BundleCodec.writeString(out, key);
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't write the pinned cache keys", ex);
+            temp.delete();
+            return;
+        }
+
+        if(!temp.renameTo(pinnedFile)) temp.delete();
     }
 
     private long getFileSize(String uri) {
@@ -185,4 +748,58 @@ public final class Evictor implements CacheEvictor, Comparator<CacheSpan> {
         return fileSize;
     }
 
+    /**
+     * Marks the key it reads as open until it's closed
+     */
+    private class ReaderDataSource implements DataSource {
+
+        private final DataSource upstream;
+        private final CacheKeyFactory cacheKeys;
+        private String openKey;
+
+        private ReaderDataSource(DataSource upstream, CacheKeyFactory cacheKeys) {
+            this.upstream = upstream;
+            this.cacheKeys = cacheKeys;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            upstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            openKey = cacheKeys.buildCacheKey(dataSpec);
+            addReader(openKey, 1);
+            return upstream.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return upstream.read(buffer, offset, readLength);
+        }
+
+        @Override
+        public Uri getUri() {
+            return upstream.getUri();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return upstream.getResponseHeaders();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                upstream.close();
+            } finally {
+                // The source is closed even when it failed to open
+                if(openKey != null) addReader(openKey, -1);
+                openKey = null;
+            }
+        }
+
+    }
+
 }
@@ -119,46 +119,62 @@ public abstract class ExoPlayback<T extends Player> implements EventListener, Me
     }
 
     public void skipByIndex(int index, Promise promise) {
-        if(index < 0 || index >= queue.size()) {
+        if(!skipByIndex(index)) {
             promise.reject("index_out_of_bounds", "The index is out of bounds");
             return;
         }
 
+        promise.resolve(null);
+    }
+
+    public boolean skipByIndex(int index) {
+        if(index < 0 || index >= queue.size()) return false;
+
         lastKnownWindow = player.getCurrentWindowIndex();
         lastKnownPosition = player.getCurrentPosition();
 
         player.seekToDefaultPosition(index);
-        promise.resolve(null);
+        return true;
     }
 
     public void skipToPrevious(Promise promise) {
-        int prev = player.getPreviousWindowIndex();
-
-        if(prev == C.INDEX_UNSET) {
+        if(!skipToPrevious()) {
             promise.reject("no_previous_track", "There is no previous track");
             return;
         }
 
+        promise.resolve(null);
+    }
+
+    public boolean skipToPrevious() {
+        int prev = player.getPreviousWindowIndex();
+        if(prev == C.INDEX_UNSET) return false;
+
         lastKnownWindow = player.getCurrentWindowIndex();
         lastKnownPosition = player.getCurrentPosition();
 
         player.seekToDefaultPosition(prev);
-        promise.resolve(null);
+        return true;
     }
 
     public void skipToNext(Promise promise) {
-        int next = player.getNextWindowIndex();
-
-        if(next == C.INDEX_UNSET) {
+        if(!skipToNext()) {
             promise.reject("queue_exhausted", "There is no tracks left to play");
             return;
         }
 
+        promise.resolve(null);
+    }
+
+    public boolean skipToNext() {
+        int next = player.getNextWindowIndex();
+        if(next == C.INDEX_UNSET) return false;
+
         lastKnownWindow = player.getCurrentWindowIndex();
         lastKnownPosition = player.getCurrentPosition();
 
         player.seekToDefaultPosition(next);
-        promise.resolve(null);
+        return true;
     }
 
     public void play() {
@@ -0,0 +1,115 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.amr.AmrExtractor;
+import com.google.android.exoplayer2.extractor.mkv.MatroskaExtractor;
+import com.google.android.exoplayer2.extractor.mp3.Mp3Extractor;
+import com.google.android.exoplayer2.extractor.mp4.Mp4Extractor;
+import com.google.android.exoplayer2.extractor.ogg.OggExtractor;
+import com.google.android.exoplayer2.extractor.ts.AdtsExtractor;
+import com.google.android.exoplayer2.extractor.wav.WavExtractor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the extractors of progressive tracks from their content type, or their file extension when it's not set.
+ *
+ * The matching extractors sniff the stream first, so the player doesn't try every container format before it starts.
+ * The other extractors still follow, in case the content type is wrong.
+ * Apps can map more types from their native code with {@link #register(String, ExtractorsFactory)}.
+ * @author Drazail
+ */
+public final class ExtractorRegistry {
+
+    private static final ExtractorsFactory DEFAULT = new DefaultExtractorsFactory().setConstantBitrateSeekingEnabled(true);
+
+    // The extractors by lower case content type or file extension
+    private static final Map<String, ExtractorsFactory> factories = new HashMap<>();
+
+    static {
+        ExtractorsFactory mp3 = () -> new Extractor[] {
+                new Mp3Extractor(Mp3Extractor.FLAG_ENABLE_CONSTANT_BITRATE_SEEKING)};
+        ExtractorsFactory mp4 = () -> new Extractor[] {new Mp4Extractor()};
+        ExtractorsFactory adts = () -> new Extractor[] {
+                new AdtsExtractor(0, AdtsExtractor.FLAG_ENABLE_CONSTANT_BITRATE_SEEKING)};
+        ExtractorsFactory ogg = () -> new Extractor[] {new OggExtractor()};
+        ExtractorsFactory wav = () -> new Extractor[] {new WavExtractor()};
+        ExtractorsFactory matroska = () -> new Extractor[] {new MatroskaExtractor()};
+        ExtractorsFactory amr = () -> new Extractor[] {new AmrExtractor(AmrExtractor.FLAG_ENABLE_CONSTANT_BITRATE_SEEKING)};
+
+        register(mp3, "audio/mpeg", "audio/mp3", "audio/mpeg3", "mp3");
+        register(mp4, "audio/mp4", "audio/m4a", "audio/x-m4a", "video/mp4", "m4a", "m4b", "mp4");
+        register(adts, "audio/aac", "audio/aacp", "audio/x-aac", "aac");
+        register(ogg, "audio/ogg", "audio/opus", "application/ogg", "ogg", "oga", "opus");
+        register(wav, "audio/wav", "audio/x-wav", "audio/wave", "wav");
+        register(matroska, "audio/webm", "video/webm", "audio/x-matroska", "video/x-matroska", "webm", "mka", "mkv");
+        register(amr, "audio/amr", "amr");
+    }
+
+    private ExtractorRegistry() {}
+
+    /**
+     * Sets the extractors to try first for a content type or a file extension
+     */
+    public static void register(String type, ExtractorsFactory factory) {
+        synchronized(factories) {
+            factories.put(type.toLowerCase(Locale.US), factory);
+        }
+    }
+
+    private static void register(ExtractorsFactory factory, String... types) {
+        for(String type : types) register(type, factory);
+    }
+
+    /**
+     * Gets the extractors for a progressive track
+     * @param contentType The content type of the track, or null
+     */
+    public static ExtractorsFactory get(String contentType, Uri uri) {
+        ExtractorsFactory preferred = find(contentType, uri);
+        if(preferred == null) return DEFAULT;
+
+        return () -> {
+            List<Extractor> extractors = new ArrayList<>();
+            Set<Class<?>> types = new HashSet<>();
+
+            Collections.addAll(extractors, preferred.createExtractors());
+            for(Extractor extractor : extractors) types.add(extractor.getClass());
+
+            for(Extractor extractor : DEFAULT.createExtractors()) {
+                if(!types.contains(extractor.getClass())) extractors.add(extractor);
+            }
+
+            return extractors.toArray(new Extractor[0]);
+        };
+    }
+
+    private static ExtractorsFactory find(String contentType, Uri uri) {
+        synchronized(factories) {
+            if(contentType != null) {
+                // Removes the parameters, such as the codecs
+                int separator = contentType.indexOf(';');
+                String type = separator == -1 ? contentType : contentType.substring(0, separator);
+
+                ExtractorsFactory factory = factories.get(type.trim().toLowerCase(Locale.US));
+                if(factory != null) return factory;
+            }
+
+            String path = uri.getLastPathSegment();
+            int dot = path == null ? -1 : path.lastIndexOf('.');
+            if(dot == -1) return null;
+
+            return factories.get(path.substring(dot + 1).toLowerCase(Locale.US));
+        }
+    }
+
+}
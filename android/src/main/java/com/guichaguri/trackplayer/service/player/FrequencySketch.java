@@ -0,0 +1,97 @@
+package com.guichaguri.trackplayer.service.player;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Estimates how often each key was played using a count-min sketch, in a fixed amount of memory.
+ *
+ * The counters are halved once enough plays were recorded, so old favorites slowly fade away.
+ * @author Drazail
+ */
+public final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int width;
+    private final byte[] table;
+    private final int resetSize;
+    private int additions = 0;
+
+    /**
+     * @param width How many counters each row has, rounded up to a power of two
+     */
+    public FrequencySketch(int width) {
+        this.width = width <= 16 ? 16 : Integer.highestOneBit(width - 1) << 1;
+        this.table = new byte[this.width * DEPTH];
+        this.resetSize = this.width * 10;
+    }
+
+    /**
+     * Records a play of the key
+     */
+    public synchronized void increment(String key) {
+        int hash = key.hashCode();
+        boolean added = false;
+
+        for(int row = 0; row < DEPTH; row++) {
+            int i = index(hash, row);
+
+            if(table[i] < MAX_COUNT) {
+                table[i]++;
+                added = true;
+            }
+        }
+
+        if(added && ++additions >= resetSize) reset();
+    }
+
+    /**
+     * Estimates how many times the key was played recently
+     */
+    public synchronized int frequency(String key) {
+        int hash = key.hashCode();
+        int frequency = MAX_COUNT;
+
+        for(int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, table[index(hash, row)]);
+        }
+
+        return frequency;
+    }
+
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(additions);
+        out.write(table);
+    }
+
+    /**
+     * Replaces the counters with the ones previously written
+     * @return Whether they were read. A sketch with a different width is ignored.
+     */
+    public synchronized boolean read(DataInput in) throws IOException {
+        if(in.readInt() != width) return false;
+
+        additions = in.readInt();
+        in.readFully(table);
+        return true;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x45D9F3B;
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+
+    private void reset() {
+        for(int i = 0; i < table.length; i++) {
+            table[i] >>= 1;
+        }
+        additions /= 2;
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.guichaguri.trackplayer.service.player;
+
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
+import java.io.IOException;
+
+/**
+ * Writes to the cache like {@link CacheDataSink}, but also ends a file at the head size of the track,
+ * so the evictor can remove the rest of the track while keeping its head.
+ *
+ * Only the head is cut at that size, the rest of the track is split in default sized fragments.
+ * @author Drazail
+ */
+class HeadCacheDataSink implements DataSink {
+
+    private final long headSize;
+    private final CacheDataSink head;
+    private final CacheDataSink tail;
+
+    private DataSpec dataSpec;
+    private long position; // The position in the track of the next byte
+    private boolean writingHead = false;
+
+    HeadCacheDataSink(Cache cache, long headSize) {
+        this.headSize = headSize;
+        this.head = new CacheDataSink(cache, headSize);
+        this.tail = new CacheDataSink(cache, CacheDataSink.DEFAULT_FRAGMENT_SIZE);
+    }
+
+    /**
+     * Creates a factory of sinks, each write gets its own sink
+     */
+    static DataSink.Factory factory(Cache cache, long headSize) {
+        return () -> new HeadCacheDataSink(cache, headSize);
+    }
+
+    @Override
+    public void open(DataSpec dataSpec) throws IOException {
+        this.dataSpec = dataSpec;
+        this.position = dataSpec.absoluteStreamPosition;
+        this.writingHead = position < headSize;
+
+        if(writingHead) {
+            head.open(dataSpec);
+        } else {
+            tail.open(dataSpec);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if(writingHead && position + length > headSize) {
+            // Closes the head file right at the head size and continues in the tail
+            int headLength = (int)(headSize - position);
+            head.write(buffer, offset, headLength);
+            head.close();
+
+            writingHead = false;
+            position += headLength;
+            offset += headLength;
+            length -= headLength;
+
+            tail.open(dataSpec.subrange(position - dataSpec.absoluteStreamPosition));
+        }
+
+        if(writingHead) {
+            head.write(buffer, offset, length);
+        } else {
+            tail.write(buffer, offset, length);
+        }
+        position += length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(writingHead) {
+            head.close();
+        } else {
+            tail.close();
+        }
+    }
+
+}
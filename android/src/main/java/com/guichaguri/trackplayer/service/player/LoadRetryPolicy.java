@@ -0,0 +1,122 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Bundle;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
+import com.google.android.exoplayer2.upstream.HttpDataSource.InvalidResponseCodeException;
+import com.google.android.exoplayer2.upstream.LoadErrorHandlingPolicy;
+import com.google.android.exoplayer2.upstream.Loader;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides which failed loads are retried, after how long, and for how long failing adaptive variants are blacklisted.
+ *
+ * The delay doubles on every retry, with a random jitter so the clients that failed together don't retry together.
+ * Once the retries are exhausted, the error reaches the player.
+ * @author Drazail
+ */
+public class LoadRetryPolicy implements LoadErrorHandlingPolicy {
+
+    public static final LoadRetryPolicy DEFAULT = new LoadRetryPolicy(3, 1000, 8000, true,
+            Arrays.asList(408, 429, 500, 502, 503, 504), 60000);
+
+    private final int maxRetries;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+    private final boolean retryOnTimeout;
+    private final Set<Integer> retryStatusCodes;
+    private final long blacklistDuration;
+    private final Random random = new Random();
+
+    public LoadRetryPolicy(int maxRetries, long retryDelay, long maxRetryDelay, boolean retryOnTimeout,
+                           List<Integer> retryStatusCodes, long blacklistDuration) {
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.retryOnTimeout = retryOnTimeout;
+        this.retryStatusCodes = Collections.unmodifiableSet(new HashSet<>(retryStatusCodes));
+        this.blacklistDuration = blacklistDuration;
+    }
+
+    /**
+     * Creates a policy from the options, the missing ones are taken from the fallback policy
+     * @param options The options, or null to use the fallback policy
+     */
+    public static LoadRetryPolicy create(Bundle options, LoadRetryPolicy fallback) {
+        if(options == null) return fallback;
+
+        List<Integer> statusCodes = options.getIntegerArrayList("retryStatusCodes");
+
+        return new LoadRetryPolicy(
+                (int)options.getDouble("maxRetries", fallback.maxRetries),
+                Utils.toMillis(options.getDouble("retryDelay", Utils.toSeconds(fallback.retryDelay))),
+                Utils.toMillis(options.getDouble("maxRetryDelay", Utils.toSeconds(fallback.maxRetryDelay))),
+                options.getBoolean("retryOnTimeout", fallback.retryOnTimeout),
+                statusCodes != null ? statusCodes : new ArrayList<>(fallback.retryStatusCodes),
+                Utils.toMillis(options.getDouble("blacklistDuration", Utils.toSeconds(fallback.blacklistDuration)))
+        );
+    }
+
+    @Override
+    public long getBlacklistDurationMsFor(int dataType, long loadDurationMs, IOException exception, int errorCount) {
+        if(blacklistDuration <= 0) return C.TIME_UNSET;
+
+        if(exception instanceof InvalidResponseCodeException) {
+            int code = ((InvalidResponseCodeException)exception).responseCode;
+
+            // Missing or broken variants are switched instead of retried, when there are other variants
+            if(code == 404 || code == 410 || code >= 500) return blacklistDuration;
+        }
+
+        return isTimeout(exception) ? blacklistDuration : C.TIME_UNSET;
+    }
+
+    @Override
+    public long getRetryDelayMsFor(int dataType, long loadDurationMs, IOException exception, int errorCount) {
+        if(errorCount > maxRetries || !isRetryable(exception)) return C.TIME_UNSET;
+
+        long delay = Math.min(retryDelay << Math.min(errorCount - 1, 30), maxRetryDelay);
+
+        // A random delay between half and the whole backoff
+        return delay / 2 + (long)(random.nextDouble() * (delay - delay / 2));
+    }
+
+    @Override
+    public int getMinimumLoadableRetryCount(int dataType) {
+        return maxRetries;
+    }
+
+    private boolean isRetryable(IOException exception) {
+        if(exception instanceof ParserException || exception instanceof FileNotFoundException
+                || exception instanceof Loader.UnexpectedLoaderException) {
+            return false;
+        }
+
+        if(exception instanceof InvalidResponseCodeException) {
+            return retryStatusCodes.contains(((InvalidResponseCodeException)exception).responseCode);
+        }
+
+        if(isTimeout(exception)) return retryOnTimeout;
+
+        // Connection resets, DNS failures and other network errors
+        return true;
+    }
+
+    private static boolean isTimeout(Throwable exception) {
+        for(Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if(cause instanceof InterruptedIOException) return true;
+        }
+        return false;
+    }
+
+}
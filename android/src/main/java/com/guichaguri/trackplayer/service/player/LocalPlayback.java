@@ -1,81 +1,714 @@
 package com.guichaguri.trackplayer.service.player;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.audio.AudioAttributes;
 import com.google.android.exoplayer2.database.DatabaseProvider;
-import com.google.android.exoplayer2.database.ExoDatabaseProvider;
 import com.google.android.exoplayer2.source.ConcatenatingMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.upstream.DataSink;
 import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSinkFactory;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
 import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
 import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
 import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+import com.guichaguri.trackplayer.module.MusicEvents;
 import com.guichaguri.trackplayer.service.MusicManager;
 import com.guichaguri.trackplayer.service.MusicService;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.download.DownloadQueue;
+import com.guichaguri.trackplayer.service.http.HttpStack;
 import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.persistence.QueueJournal;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * @author Drazail
  */
 public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
 
+    private static final long CHECKPOINT_INTERVAL_MS = 30000;
+    private static final long CACHE_TRIM_INTERVAL_MS = 60000;
+    private static final long CACHE_SWEEP_INTERVAL_MS = 10 * 60000;
+    private static final long WARMUP_LEAD_MS = 10000; // How long before the end of a track the next host is warmed up
+    private static final int PROTECTED_TRACKS = 2;
+
     private final long cacheMaxSize;
+    private final long persistentCacheMaxSize;
+    private final BufferLoadControl loadControl;
 
     private SimpleCache cache;
+    private SimpleCache persistentCache; // The tier read before the streaming cache, if enabled
+    private Evictor evictor;
+    private CacheExpiry expiry;
+    private boolean cachePrepared = false; // Whether the cache was opened, guarded by this instance
+    private volatile boolean cacheReady = false; // Whether the cache can be used, set by the main thread
+    private volatile boolean released = false;
+    private long readyAt = 0; // When the cache was ready, in elapsed realtime milliseconds
+    private final List<Runnable> readyCallbacks = new ArrayList<>();
+    private boolean trackEviction = false;
+    private boolean frequencyAware = false;
+    private Collection<String> pinnedKeys = null; // Pinned by JS, null to keep the stored ones
+    private long headCacheSize = 0;
+    private long minCacheSize = 0;
+    private long minFreeDiskSpace = 0;
+    private long cacheTtl = 0;
+    private String playedKey; // The cache key of the last play counted
+
+    private final PriorityTaskManager priorityTaskManager = new PriorityTaskManager();
+    private Prefetcher prefetcher;
+    private final NetworkStats networkStats = new NetworkStats();
+    private final CacheKeyNormalizer cacheKeys = new CacheKeyNormalizer();
+    private long networkStatsInterval = 0;
+    private DownloadQueue downloads;
+    private int maxParallelDownloads = 2;
+    private int prefetchTracks = 0;
+    private long prefetchBytes = 0;
+    private int prefetchConcurrency = 1;
+    private long prefetchBandwidth = 0;
+    private Future<?> warmup;
+    private LoadRetryPolicy retryPolicy = LoadRetryPolicy.DEFAULT;
     private ConcatenatingMediaSource source;
     private boolean prepared = false;
+    private QueueJournal journal;
+    private boolean restoredFromJournal = false; // Whether a media button resumed the whole queue from the journal
     
     private final MusicService service;
 
-    public LocalPlayback(MusicService service, Context context, MusicManager manager, SimpleExoPlayer player, long maxCacheSize) {
+    private final Runnable networkStatsReporter = new Runnable() {
+        @Override
+        public void run() {
+            service.emit(MusicEvents.NETWORK_STATS, networkStats.getSessionStats());
+            manager.getHandler().postDelayed(this, networkStatsInterval);
+        }
+    };
+
+    private final Runnable cacheTrimmer = new Runnable() {
+        @Override
+        public void run() {
+            // Stops until the adaptive limit is enabled again
+            if(minFreeDiskSpace <= 0 || manager.getDiskExecutor().isShutdown()) return;
+
+            manager.getDiskExecutor().execute(() -> {
+                if(!released) evictor.trim(cache);
+            });
+            manager.getHandler().postDelayed(this, CACHE_TRIM_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable cacheSweeper = new Runnable() {
+        @Override
+        public void run() {
+            sweepExpiredKeys(getProtectedKeys(player.getCurrentWindowIndex()));
+            manager.getHandler().postDelayed(this, CACHE_SWEEP_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable nextWarmUp = new Runnable() {
+        @Override
+        public void run() {
+            int index = player.getNextWindowIndex();
+            if(index == C.INDEX_UNSET || index >= queue.size()) return;
+
+            Track next = queue.get(index);
+            if(next.resourceId != 0 || Utils.isLocal(next.uri) || isFullyCached(next)) return;
+
+            warmup = manager.getHttpStack().warmUp(next.uri, next.userAgent, next.headers);
+        }
+    };
+
+    private final Runnable checkpoint = new Runnable() {
+        @Override
+        public void run() {
+            journal.checkpoint(player.getCurrentPosition(), false);
+            manager.getHandler().postDelayed(this, CHECKPOINT_INTERVAL_MS);
+        }
+    };
+
+    public LocalPlayback(MusicService service, Context context, MusicManager manager, SimpleExoPlayer player,
+                         BufferLoadControl loadControl, long maxCacheSize, long persistentCacheMaxSize) {
         super(context, manager, player);
         this.cacheMaxSize = maxCacheSize;
+        this.persistentCacheMaxSize = persistentCacheMaxSize;
+        this.loadControl = loadControl;
         this.service = service;
     }
 
-    @Override
-    public void initialize() {
+    public long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    public long getPersistentCacheMaxSize() {
+        return persistentCacheMaxSize;
+    }
+
+    public BufferLoadControl getLoadControl() {
+        return loadControl;
+    }
+
+    /**
+     * Sets whether the custom evictor removes whole tracks instead of single spans
+     */
+    public void setTrackEviction(boolean trackEviction) {
+        this.trackEviction = trackEviction;
+        if(getEvictor() != null) evictor.setTrackEviction(trackEviction);
+    }
+
+    /**
+     * Sets whether the custom evictor removes the least played keys instead of the least recently used ones
+     */
+    public void setFrequencyAware(boolean frequencyAware) {
+        this.frequencyAware = frequencyAware;
+        if(getEvictor() != null) evictor.setFrequencyAware(frequencyAware);
+    }
+
+    /**
+     * Sets the keys the custom evictor never removes, replacing the stored ones
+     */
+    public void setPinnedKeys(Collection<String> pinnedKeys) {
+        this.pinnedKeys = pinnedKeys;
+        if(getEvictor() != null) evictor.setPinnedKeys(pinnedKeys);
+    }
+
+    /**
+     * Sets how many bytes at the start of each track the custom evictor keeps the longest
+     */
+    public void setHeadCacheSize(long headCacheSize) {
+        this.headCacheSize = headCacheSize;
+        if(getEvictor() != null) evictor.setHeadSize(headCacheSize);
+    }
+
+    /**
+     * Sets the bounds of the custom evictor limit, which shrinks when the disk runs low
+     * @param minCacheSize The size the limit never shrinks below
+     * @param minFreeDiskSpace How many bytes should be left free on the disk, or 0 to disable it
+     */
+    public void setAdaptiveCacheSize(long minCacheSize, long minFreeDiskSpace) {
+        this.minCacheSize = minCacheSize;
+        this.minFreeDiskSpace = minFreeDiskSpace;
+        if(getEvictor() == null) return;
+
+        evictor.setAdaptiveLimit(minCacheSize, minFreeDiskSpace);
+
+        // Restarts the trimming, or stops it when the adaptive limit is disabled
+        manager.getHandler().removeCallbacks(cacheTrimmer);
+        cacheTrimmer.run();
+    }
+
+    /**
+     * Sets the default time-to-live of the cached keys, used by the tracks that don't set their own
+     * @param cacheTtl The time-to-live in milliseconds, or 0 to keep the keys forever
+     */
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    public NetworkStats getNetworkStats() {
+        return networkStats;
+    }
+
+    public LoadRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets how the failed loads of the tracks added from now on are retried
+     */
+    public void setRetryPolicy(LoadRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public HttpStack getHttpStack() {
+        return manager.getHttpStack();
+    }
+
+    public CacheKeyNormalizer getCacheKeys() {
+        return cacheKeys;
+    }
+
+    /**
+     * Sets how often the network stats event is sent
+     * @param interval The interval in milliseconds, 0 to disable the event
+     */
+    public void setNetworkStatsInterval(long interval) {
+        Handler handler = manager.getHandler();
+        handler.removeCallbacks(networkStatsReporter);
+
+        networkStatsInterval = interval;
+        if(interval > 0) handler.postDelayed(networkStatsReporter, interval);
+    }
+
+    /**
+     * Sets the budget for prefetching the upcoming tracks
+     * @param tracks How many upcoming tracks should be prefetched, 0 disables prefetching
+     * @param bytes How many bytes of each track should be prefetched
+     * @param concurrency How many tracks can be prefetched at the same time
+     * @param bandwidth The bandwidth in bytes per second shared by all prefetches, 0 for unlimited
+     */
+    public void setPrefetch(int tracks, long bytes, int concurrency, long bandwidth) {
+        this.prefetchTracks = tracks;
+        this.prefetchBytes = bytes;
+        this.prefetchConcurrency = concurrency;
+        this.prefetchBandwidth = bandwidth;
+
+        if(cacheReady) updatePrefetcher();
+    }
+
+    private void updatePrefetcher() {
+        if(!hasCache() || prefetchTracks <= 0 || prefetchBytes <= 0) {
+            if(prefetcher != null) {
+                prefetcher.release();
+                prefetcher = null;
+            }
+            return;
+        }
+
+        if(prefetcher == null) prefetcher = new Prefetcher(context, cache, priorityTaskManager, networkStats, cacheKeys,
+                manager.getHttpStack(), this::isFullyCached);
+        prefetcher.configure(prefetchTracks, prefetchBytes, prefetchConcurrency, prefetchBandwidth);
+        prefetchUpcoming();
+    }
+
+    /**
+     * Prefetches the tracks after the current one, and cancels the ones that aren't upcoming anymore
+     */
+    private void prefetchUpcoming() {
+        int index = player.getCurrentWindowIndex();
+        if(prefetcher != null && index >= 0 && index < queue.size()) prefetcher.update(queue, index);
+    }
+
+    /**
+     * Whether the cache is enabled and done loading
+     */
+    public boolean hasCache() {
+        return cacheReady && cache != null;
+    }
+
+    /**
+     * Gets the cached bytes and content length of each key.
+     * The custom evictor keeps an index of its own, otherwise the in-memory index of the cache is used.
+     */
+    public List<Bundle> getCacheStatus(List<String> keys) {
+        List<Bundle> status = new ArrayList<>();
+
+        Cache persistent = getPersistentCache();
+
+        for(String key : keys) {
+            Bundle bundle = null;
+
+            if(persistent != null) {
+                long length = ContentMetadata.getContentLength(persistent.getContentMetadata(key));
+                bundle = Evictor.createStatus(key, CachePromoter.getCachedBytes(persistent, key), length);
+            }
+
+            if(bundle == null || (!bundle.getBoolean("complete") && persistent != cache)) {
+                long length = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+                bundle = Evictor.createStatus(key, getCachedBytes(key), length);
+                bundle.putBoolean("persistent", false);
+            } else {
+                bundle.putBoolean("persistent", true);
+            }
+
+            status.add(bundle);
+        }
+
+        return status;
+    }
+
+    private long getCachedBytes(String key) {
+        if(evictor != null) return evictor.getCachedBytes(key);
+        return CachePromoter.getCachedBytes(cache, key);
+    }
+
+    public Bundle getCacheSize() {
+        Bundle bundle = new Bundle();
+
+        if(evictor != null) {
+            bundle.putDouble("size", evictor.getCacheSize());
+            bundle.putDouble("maxSize", evictor.getMaxCacheSize());
+            bundle.putDouble("limit", evictor.getLimit());
+            bundle.putInt("keys", evictor.getKeyCount());
+        } else {
+            bundle.putDouble("size", cache.getCacheSpace());
+            bundle.putDouble("maxSize", cacheMaxSize > 0 ? cacheMaxSize : -1);
+            bundle.putDouble("limit", cacheMaxSize > 0 ? cacheMaxSize : -1);
+            bundle.putInt("keys", cache.getKeys().size());
+        }
+
+        return bundle;
+    }
+
+    public List<String> listCachedKeys(int offset, int limit) {
+        if(evictor != null) return evictor.getCachedKeys(offset, limit);
+
+        List<String> keys = new ArrayList<>(cache.getKeys());
+        Collections.sort(keys);
+
+        int start = Math.min(Math.max(offset, 0), keys.size());
+        int end = limit < 0 ? keys.size() : Math.min(start + limit, keys.size());
+        return new ArrayList<>(keys.subList(start, end));
+    }
+
+    /**
+     * Removes keys from the cache in background. The current track is kept, as it may still be loading.
+     * The downloads of the keys are removed too, so they aren't reported as completed without their data.
+     */
+    public void removeFromCache(List<String> keys, Promise promise) {
+        Track current = getCurrentTrack();
+        Set<String> removed = new HashSet<>(keys);
+        if(current != null) removed.remove(cacheKeys.getKey(current));
+
+        Set<String> downloaded;
+
+        try {
+            downloaded = downloads != null ? downloads.removeByCacheKey(removed) : Collections.emptySet();
+        } catch(IOException ex) {
+            promise.reject("cache_error", ex);
+            return;
+        }
+
+        Cache store = getPersistentCache();
+
+        manager.getDiskExecutor().execute(() -> {
+            try {
+                for(String key : removed) {
+                    // The download manager removes the data of the downloads from their store itself
+                    boolean download = downloaded.contains(key);
+
+                    if(!download || cache != store) CacheUtil.remove(cache, key);
+                    if(persistentCache != null && (!download || persistentCache != store)) {
+                        CacheUtil.remove(persistentCache, key);
+                    }
+                }
+                promise.resolve(null);
+            } catch(Exception ex) {
+                promise.reject("cache_error", ex);
+            }
+        });
+    }
+
+    /**
+     * Gets the cache that is never evicted, which holds the downloads
+     */
+    private Cache getPersistentCache() {
+        return cacheMaxSize == 0 ? cache : persistentCache;
+    }
+
+    /**
+     * Copies fully cached keys from the streaming cache to the persistent tier in background
+     */
+    public void promoteToPersistentCache(List<String> keys, Promise promise) {
+        if(persistentCache == null) {
+            promise.reject("cache_unsupported", "The persistent cache is disabled");
+            return;
+        }
+
+        manager.getDiskExecutor().execute(() -> {
+            List<String> promoted = new ArrayList<>();
+
+            try {
+                for(String key : keys) {
+                    if(CachePromoter.promote(cache, persistentCache, key, persistentCacheMaxSize)) promoted.add(key);
+                }
+                promise.resolve(Arguments.fromList(promoted));
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                promise.reject("cache_error", ex);
+            } catch(Exception ex) {
+                promise.reject("cache_error", ex);
+            }
+        });
+    }
+
+    /**
+     * Gets the download queue, which is only available when there is a persistent cache
+     */
+    public DownloadQueue getDownloads() {
+        return downloads;
+    }
+
+    public void setMaxParallelDownloads(int maxParallelDownloads) {
+        this.maxParallelDownloads = maxParallelDownloads;
+        if(downloads != null) downloads.setMaxParallelDownloads(maxParallelDownloads);
+    }
+
+    /**
+     * Gets the custom evictor, which is only used when the max cache size is negative
+     */
+    public Evictor getEvictor() {
+        return cacheReady ? evictor : null;
+    }
+
+    /**
+     * Opens the cache, which scans the whole cache directory and loads its index.
+     * It should be called from a background thread, it's only used by the playback once {@link #initialize()} is done with it.
+     */
+    public synchronized void prepareCache() {
+        if(cachePrepared || released) return;
+        cachePrepared = true;
+
+        DatabaseProvider db = manager.getDatabaseProvider();
 
         if(cacheMaxSize > 0) {
             File cacheDir = new File(context.getCacheDir(), "TrackPlayer");
-            DatabaseProvider db = new ExoDatabaseProvider(context);
             cache = new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(cacheMaxSize), db);
             Log.d(Utils.LOG, "cache: LeastRecentlyUsedCacheEvictor");
         } else if (cacheMaxSize == 0) {
             File cacheDir = new File(context.getFilesDir(), "TrackPlayerPersisting");
-            DatabaseProvider db = new ExoDatabaseProvider(context);
             NoOpCacheEvictor NoOpEvictor = new NoOpCacheEvictor();
             cache = new SimpleCache(cacheDir, NoOpEvictor, db);
             Log.d(Utils.LOG, "cache: NoOpEvictor");
         } else if (cacheMaxSize < 0) {
             File cacheDir = new File(context.getFilesDir(), "TrackPlayerCustomEvictor");
-            DatabaseProvider db = new ExoDatabaseProvider(context);
-            cache = new SimpleCache(cacheDir, new Evictor(service, -cacheMaxSize),db);
+            evictor = new Evictor(service, -cacheMaxSize, cacheDir);
+            evictor.setTrackEviction(trackEviction);
+            evictor.setFrequencyAware(frequencyAware);
+            evictor.setHeadSize(headCacheSize);
+            evictor.setAdaptiveLimit(minCacheSize, minFreeDiskSpace);
+            cache = new SimpleCache(cacheDir, evictor, db);
             Log.d(Utils.LOG, "cache: Evictor");
 
         } else {
             cache = null;
         }
 
+        // A size of 0 makes the cache hold the downloads as well, which can't expire while they're completed
+        if(cache != null && cacheMaxSize != 0) expiry = new CacheExpiry(cache, cacheKeys);
+
+        if(persistentCacheMaxSize != C.LENGTH_UNSET && cacheMaxSize != 0) {
+            // The size limit is checked on promotion, the persistent tier never evicts anything
+            File cacheDir = new File(context.getFilesDir(), "TrackPlayerPersisting");
+            persistentCache = new SimpleCache(cacheDir, new NoOpCacheEvictor(), db);
+            Log.d(Utils.LOG, "cache: persistent tier");
+        }
+    }
+
+    private synchronized boolean isCachePrepared() {
+        return cachePrepared;
+    }
+
+    private synchronized void releaseCache() {
+        if(evictor != null) evictor.release();
+
+        if(persistentCache != null) {
+            try {
+                persistentCache.release();
+                persistentCache = null;
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't release the persistent cache properly", ex);
+            }
+        }
+
+        if(cache != null) {
+            try {
+                cache.release();
+                cache = null;
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't release the cache properly", ex);
+            }
+        }
+    }
+
+    @Override
+    public void initialize() {
+        player.setAudioAttributes(new AudioAttributes.Builder()
+                .setContentType(C.CONTENT_TYPE_MUSIC).setUsage(C.USAGE_MEDIA).build());
+
+        // The player takes priority over prefetching while it's loading
+        player.setPriorityTaskManager(priorityTaskManager);
+
         super.initialize();
 
         resetQueue();
-    } 
 
-    public DataSource.Factory enableCaching(DataSource.Factory ds) {
-        if(cache == null ) return ds;
+        if(isCachePrepared() || manager.getDiskExecutor().isShutdown()) {
+            prepareCache();
+            onCachePrepared();
+        } else {
+            // The tracks added while the cache loads switch to it once it's ready
+            long start = SystemClock.elapsedRealtime();
+            Handler handler = manager.getHandler();
+
+            manager.getDiskExecutor().execute(() -> {
+                prepareCache();
+                handler.post(() -> {
+                    onCachePrepared();
+                    Log.d(Utils.LOG, "Cache loaded in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                });
+            });
+        }
+    }
+
+    /**
+     * Runs the task once the cache is done loading, or right away when it already is or the playback was destroyed
+     */
+    public void whenCacheReady(Runnable task) {
+        if(cacheReady || released) {
+            task.run();
+        } else {
+            readyCallbacks.add(task);
+        }
+    }
+
+    /**
+     * Gets when the player and its cache were ready, in elapsed realtime milliseconds, or 0 when they aren't yet
+     */
+    public long getReadyAt() {
+        return readyAt;
+    }
+
+    private void runReadyCallbacks() {
+        List<Runnable> callbacks = new ArrayList<>(readyCallbacks);
+        readyCallbacks.clear();
+        for(Runnable callback : callbacks) callback.run();
+    }
+
+    private void onCachePrepared() {
+        if(released) return;
+        cacheReady = true;
+        readyAt = SystemClock.elapsedRealtime();
+
+        // The options might have changed while the cache was loading
+        if(evictor != null) {
+            evictor.setTrackEviction(trackEviction);
+            evictor.setFrequencyAware(frequencyAware);
+            evictor.setHeadSize(headCacheSize);
+            evictor.setAdaptiveLimit(minCacheSize, minFreeDiskSpace);
+            if(pinnedKeys != null) evictor.setPinnedKeys(pinnedKeys);
+
+            // The free space is also checked while nothing is written, so the cache gives it back early
+            cacheTrimmer.run();
+        }
+
+        if(expiry != null) manager.getHandler().postDelayed(cacheSweeper, CACHE_SWEEP_INTERVAL_MS);
 
-        return new CacheDataSourceFactory(cache, ds);
+        updatePrefetcher();
+
+        // Downloads are only kept when nothing evicts them
+        if(getPersistentCache() != null) {
+            downloads = new DownloadQueue(context, manager.getDatabaseProvider(), getPersistentCache(), cacheKeys,
+                    manager.getHttpStack());
+            downloads.setMaxParallelDownloads(maxParallelDownloads);
+        }
+
+        runReadyCallbacks();
+    }
+
+    /**
+     * Persists every queue change in the given journal
+     */
+    public void setJournal(QueueJournal journal) {
+        if(this.journal != null) {
+            manager.getHandler().removeCallbacks(checkpoint);
+            this.journal.close();
+        }
+
+        this.journal = journal;
+    }
+
+    /**
+     * Whether the whole track is in one of the cache tiers, so it won't need the network
+     */
+    private boolean isFullyCached(Track track) {
+        if(!hasCache()) return false;
+
+        String key = cacheKeys.getKey(track);
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+        if(length != C.LENGTH_UNSET && getCachedBytes(key) >= length) return true;
+        if(persistentCache == null) return false;
+
+        length = ContentMetadata.getContentLength(persistentCache.getContentMetadata(key));
+        return length != C.LENGTH_UNSET && CachePromoter.getCachedBytes(persistentCache, key) >= length;
+    }
+
+    /**
+     * Warms up the host of the next track shortly before the current one ends.
+     * The previous warm-up is canceled, as the queue or the position changed.
+     */
+    private void scheduleWarmUp() {
+        manager.getHandler().removeCallbacks(nextWarmUp);
+
+        if(warmup != null) {
+            warmup.cancel(true);
+            warmup = null;
+        }
+
+        long duration = player.getDuration();
+        if(duration == C.TIME_UNSET || !Utils.isPlaying(getState())) return;
+        if(player.getNextWindowIndex() == C.INDEX_UNSET) return;
+
+        float speed = player.getPlaybackParameters().speed;
+        long delay = (long)((duration - player.getCurrentPosition() - WARMUP_LEAD_MS) / speed);
+
+        manager.getHandler().postDelayed(nextWarmUp, Math.max(delay, 0));
+    }
+
+    /**
+     * Removes the expired keys in background, a batch at a time so other disk work can run in between
+     */
+    private void sweepExpiredKeys(Collection<String> skipped) {
+        if(manager.getDiskExecutor().isShutdown()) return;
+
+        manager.getDiskExecutor().execute(() -> {
+            if(!released && expiry.sweep(skipped)) sweepExpiredKeys(skipped);
+        });
+    }
+
+    /**
+     * Wraps the network source with the cache
+     * @param listener The listener of the bytes read from the cache, or null
+     * @param ttl The time-to-live in milliseconds of the keys read, or {@link C#TIME_UNSET} for the default one
+     */
+    public DataSource.Factory enableCaching(DataSource.Factory ds, CacheDataSource.EventListener listener, long ttl) {
+        if(hasCache()) return createCachedFactory(ds, listener, ttl);
+
+        // The cache is still loading, each source picks the cache once it's ready
+        return () -> new DeferredCacheDataSource(ds, listener, ttl);
+    }
+
+    private DataSource.Factory createCachedFactory(DataSource.Factory ds, CacheDataSource.EventListener listener, long ttl) {
+        // The files are also split at the head size, so the evictor can remove the remainder without the head
+        DataSink.Factory sink = getEvictor() != null && headCacheSize > 0
+                ? HeadCacheDataSink.factory(cache, headCacheSize)
+                : new CacheDataSinkFactory(cache, CacheDataSink.DEFAULT_FRAGMENT_SIZE);
+
+        DataSource.Factory streaming = new CacheDataSourceFactory(cache, ds, new FileDataSourceFactory(),
+                sink, 0, listener, cacheKeys);
+
+        // Only the streaming cache expires, the persistent tier is managed by JS
+        if(expiry != null) streaming = expiry.wrap(streaming, ttl == C.TIME_UNSET ? cacheTtl : ttl);
+
+        // The keys being read can't be evicted
+        if(getEvictor() != null) streaming = evictor.trackReaders(streaming, cacheKeys);
+        if(persistentCache == null) return streaming;
+
+        // The persistent tier is read first and is only written by downloads and promotions
+        return new CacheDataSourceFactory(persistentCache, streaming, new FileDataSourceFactory(),
+                null, 0, listener, cacheKeys);
     }
 
     private void prepare() {
@@ -92,6 +725,133 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
         MediaSource trackSource = track.toMediaSource(context, this);
         source.addMediaSource(index, trackSource, manager.getHandler(), Utils.toRunnable(promise));
 
+        if(journal != null) journal.add(index, toBundles(Collections.singletonList(track)));
+
+        prepare();
+    }
+
+    /**
+     * Fills the empty queue in a single operation, positioning the player in the given track.
+     * The tracks are a window of the queue, the rest of it is added back from the journal when there is one.
+     */
+    public void restore(List<Track> tracks, int index, long position) {
+        fill(tracks, index, position);
+
+        if(journal != null) {
+            QueueJournal restoring = journal;
+            restoring.load(manager.getHandler(), state -> {
+                if(journal == restoring) spliceJournal(state, index);
+            });
+        }
+    }
+
+    /**
+     * Adds the tracks of the journal around the restored window, so the whole queue is back
+     * @param windowIndex The index of the current track in the window
+     */
+    private void spliceJournal(QueueJournal.State state, int windowIndex) {
+        int from = state.index - windowIndex;
+        boolean matches = from >= 0 && from + queue.size() <= state.tracks.size();
+
+        for(int i = 0; matches && i < queue.size(); i++) {
+            matches = queue.get(i).id.equals(state.tracks.get(from + i).getString("id"));
+        }
+
+        if(!matches) {
+            // The journal is outdated or the queue changed in the meantime, the current queue replaces it
+            journal.reset();
+            journal.add(0, toBundles(queue));
+            journal.current(player.getCurrentWindowIndex(), player.getCurrentPosition());
+            return;
+        }
+
+        int ratingType = manager.getMetadata().getRatingType();
+        List<Track> before = new ArrayList<>(from);
+        List<Track> after = new ArrayList<>();
+
+        for(int i = 0; i < state.tracks.size(); i++) {
+            if(i < from) {
+                before.add(new Track(context, state.tracks.get(i), ratingType));
+            } else if(i >= from + queue.size()) {
+                after.add(new Track(context, state.tracks.get(i), ratingType));
+            }
+        }
+
+        insert(queue.size(), after);
+        insert(0, before);
+
+        // The current track moved, it shouldn't be reported as a track change
+        if(lastKnownWindow != C.INDEX_UNSET) lastKnownWindow += before.size();
+
+        journal.adopt();
+        restoredFromJournal = true;
+    }
+
+    private void insert(int index, List<Track> tracks) {
+        if(tracks.isEmpty()) return;
+
+        List<MediaSource> trackList = new ArrayList<>();
+
+        for(Track track : tracks) {
+            trackList.add(track.toMediaSource(context, this));
+        }
+
+        queue.addAll(index, tracks);
+        source.addMediaSources(index, trackList);
+    }
+
+    /**
+     * Restores the queue persisted in the journal, resolving with the current track id
+     */
+    public void restoreQueue(Promise promise) {
+        if(journal == null) {
+            promise.reject("persistence_disabled", "The queue persistence is not enabled");
+            return;
+        }
+
+        journal.load(manager.getHandler(), state -> {
+            // The queue was already restored from a media button
+            if(restoredFromJournal) {
+                restoredFromJournal = false;
+
+                Track current = getCurrentTrack();
+                promise.resolve(current != null ? current.id : null);
+                return;
+            }
+
+            // Something was added in the meantime, the persisted queue is outdated
+            if(state.tracks.isEmpty() || !queue.isEmpty()) {
+                promise.resolve(null);
+                return;
+            }
+
+            int ratingType = manager.getMetadata().getRatingType();
+            List<Track> tracks = new ArrayList<>(state.tracks.size());
+
+            for(Bundle bundle : state.tracks) {
+                tracks.add(new Track(context, bundle, ratingType));
+            }
+
+            int index = Math.max(Math.min(state.index, tracks.size() - 1), 0);
+
+            fill(tracks, index, state.position);
+            journal.adopt();
+
+            promise.resolve(tracks.get(index).id);
+        });
+    }
+
+    private void fill(List<Track> tracks, int index, long position) {
+        List<MediaSource> trackList = new ArrayList<>();
+
+        for(Track track : tracks) {
+            trackList.add(track.toMediaSource(context, this));
+        }
+
+        queue.addAll(tracks);
+        source.addMediaSources(trackList);
+
+        player.seekTo(index, position);
         prepare();
     }
 
@@ -104,6 +864,8 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
             } else {
     
                 queue.set(index, track);
+                if(journal != null) journal.update(index, new Bundle(track.originalItem));
+
                 MediaSource trackSource = track.toMediaSource(context, this);
                 source.removeMediaSource(index);
                 source.addMediaSource(index, trackSource, manager.getHandler(), Utils.toRunnable(promise));
@@ -126,6 +888,8 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
         queue.addAll(index, tracks);
         source.addMediaSources(index, trackList, manager.getHandler(), Utils.toRunnable(promise));
 
+        if(journal != null) journal.add(index, toBundles(tracks));
+
         prepare();
     }
 
@@ -147,6 +911,7 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
             }
 
             queue.remove(index);
+            if(journal != null) journal.remove(index);
 
             if(i == 0) {
                 source.removeMediaSource(index, manager.getHandler(), Utils.toRunnable(promise));
@@ -165,18 +930,23 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
     public void move(int index, int newIndex, Promise promise) {
         queue.add(newIndex, queue.remove(index));
         source.moveMediaSource(index, newIndex, manager.getHandler(), Utils.toRunnable(promise));
+
+        if(journal != null) journal.moves(new int[] {index, newIndex});
     }
 
     @Override
     public void shuffle(final Promise promise) {
         Random rand = new Random();
         int length = queue.size();
+        int[] moves = new int[length * 2];
 
         // Fisher-Yates shuffle
         for (int i = 0; i < length; i++) {
             int swapIndex = rand.nextInt(i + 1);
 
             queue.add(swapIndex, queue.remove(i));
+            moves[i * 2] = i;
+            moves[i * 2 + 1] = swapIndex;
 
             if (length - 1 == i) {
                 // Resolve the promise after the last move command
@@ -185,18 +955,23 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
                 source.moveMediaSource(i, swapIndex);
             }
         }
+
+        if(journal != null) journal.moves(moves);
     }
 
     @Override
     public void shuffleFromIndex(final int index,  Promise promise) {
         Random rand = new Random();
         int length = queue.size();
+        int[] moves = new int[Math.max(length - index - 1, 0) * 2];
 
         // Fisher-Yates shuffle
         for (int i = index+1; i < length; i++) {
 
             int swapIndex = rand.nextInt(length - i)+i;
             queue.add(swapIndex, queue.remove(i));
+            moves[(i - index - 1) * 2] = i;
+            moves[(i - index - 1) * 2 + 1] = swapIndex;
 
             if (length - 1 == i) {
                 // Resolve the promise after the last move command
@@ -205,6 +980,8 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
                 source.moveMediaSource(i, swapIndex);
             }
         }
+
+        if(journal != null) journal.moves(moves);
     }
 
     @Override
@@ -227,6 +1004,15 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
             queue.remove(i);
             source.removeMediaSource(i);
         }
+
+        if(journal != null) journal.truncate(currentIndex + 1);
+    }
+
+    private static List<Bundle> toBundles(Collection<Track> tracks) {
+        // Copies the bundles, as they can be changed while the journal writes them
+        List<Bundle> bundles = new ArrayList<>(tracks.size());
+        for(Track track : tracks) bundles.add(new Bundle(track.originalItem));
+        return bundles;
     }
 
     private void resetQueue() {
@@ -267,10 +1053,20 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
 
         super.reset();
         resetQueue();
+        restoredFromJournal = false;
+
+        if(journal != null) journal.reset();
 
         manager.onTrackUpdate(track, position, null);
     }
 
+    @Override
+    public void updateTrack(int index, Track track) {
+        super.updateTrack(index, track);
+
+        if(journal != null) journal.update(index, new Bundle(track.originalItem));
+    }
+
     @Override
     public float getPlayerVolume() {
         return player.getVolume();
@@ -288,6 +1084,88 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
         }
 
         super.onPlayerStateChanged(playWhenReady, playbackState);
+
+        // The first track doesn't go through a discontinuity
+        if(playbackState == Player.STATE_READY) {
+            if(playWhenReady && getEvictor() != null) {
+                recordPlay(player.getCurrentWindowIndex(), Player.DISCONTINUITY_REASON_INTERNAL);
+            }
+            prefetchUpcoming();
+        }
+
+        scheduleWarmUp();
+
+        if(journal != null) {
+            Handler handler = manager.getHandler();
+            handler.removeCallbacks(checkpoint);
+
+            if(Utils.isPlaying(getState())) {
+                handler.postDelayed(checkpoint, CHECKPOINT_INTERVAL_MS);
+            } else {
+                // Flushes the position right away, the app might be killed while paused
+                journal.checkpoint(player.getCurrentPosition(), true);
+            }
+        }
+    }
+
+    @Override
+    public void onPositionDiscontinuity(int reason) {
+        super.onPositionDiscontinuity(reason);
+
+        int index = player.getCurrentWindowIndex();
+        if(journal != null && index >= 0 && index < queue.size()) {
+            journal.current(index, player.getCurrentPosition());
+        }
+
+        if(getEvictor() != null) {
+            updateProtectedKeys(index);
+            recordPlay(index, reason);
+        }
+        prefetchUpcoming();
+        scheduleWarmUp();
+    }
+
+    @Override
+    public void onTimelineChanged(Timeline timeline, Object manifest, int reason) {
+        super.onTimelineChanged(timeline, manifest, reason);
+
+        // The upcoming tracks might have changed
+        prefetchUpcoming();
+        scheduleWarmUp();
+    }
+
+    /**
+     * Counts a play when the track changes or repeats
+     */
+    private void recordPlay(int index, int reason) {
+        if(index < 0 || index >= queue.size()) return;
+
+        String key = cacheKeys.getKey(queue.get(index));
+        if(key.equals(playedKey) && reason != Player.DISCONTINUITY_REASON_PERIOD_TRANSITION) return;
+        playedKey = key;
+
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+        evictor.recordPlay(key, length != C.LENGTH_UNSET && evictor.getCachedBytes(key) >= length);
+    }
+
+    /**
+     * Keeps the current track and the next ones from being evicted
+     */
+    private void updateProtectedKeys(int index) {
+        evictor.setProtectedKeys(getProtectedKeys(index));
+    }
+
+    /**
+     * Gets the keys of the current track and the next ones, which the playback is about to read
+     */
+    private List<String> getProtectedKeys(int index) {
+        List<String> keys = new ArrayList<>();
+
+        for(int i = Math.max(index, 0); i < queue.size() && i <= index + PROTECTED_TRACKS; i++) {
+            keys.add(cacheKeys.getKey(queue.get(i)));
+        }
+
+        return keys;
     }
 
     @Override
@@ -300,14 +1178,101 @@ public class LocalPlayback extends ExoPlayback<SimpleExoPlayer> {
     public void destroy() {
         super.destroy();
 
-        if(cache != null) {
-            try {
-                cache.release();
-                cache = null;
-            } catch(Exception ex) {
-                Log.w(Utils.LOG, "Couldn't release the cache properly", ex);
+        if(journal != null) {
+            manager.getHandler().removeCallbacks(checkpoint);
+            journal.close();
+        }
+
+        released = true;
+        manager.getHandler().removeCallbacks(networkStatsReporter);
+        manager.getHandler().removeCallbacks(cacheTrimmer);
+        manager.getHandler().removeCallbacks(cacheSweeper);
+        manager.getHandler().removeCallbacks(nextWarmUp);
+        if(warmup != null) warmup.cancel(true);
+
+        if(prefetcher != null) prefetcher.release();
+        if(downloads != null) downloads.release();
+        runReadyCallbacks();
+
+        // Released after the cache is done loading, as only one cache can use the same folder
+        if(manager.getDiskExecutor().isShutdown()) {
+            releaseCache();
+        } else {
+            manager.getDiskExecutor().execute(this::releaseCache);
+        }
+    }
+
+
+    /**
+     * Reads from the network until the cache is ready, then from the cache.
+     * The choice is made on every open, in the loader thread, so the tracks added while the cache was loading
+     * can still be played offline from the downloads, starting from the first retry.
+     */
+    private class DeferredCacheDataSource implements DataSource {
+
+        private final DataSource.Factory upstream;
+        private final CacheDataSource.EventListener listener;
+        private final long ttl;
+        private final List<TransferListener> transferListeners = new ArrayList<>();
+
+        private DataSource uncached;
+        private DataSource cached;
+        private DataSource current;
+
+        private DeferredCacheDataSource(DataSource.Factory upstream, CacheDataSource.EventListener listener, long ttl) {
+            this.upstream = upstream;
+            this.listener = listener;
+            this.ttl = ttl;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+            transferListeners.add(transferListener);
+            if(uncached != null) uncached.addTransferListener(transferListener);
+            if(cached != null) cached.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            if(hasCache() && !released) {
+                if(cached == null) cached = create(createCachedFactory(upstream, listener, ttl));
+                current = cached;
+            } else {
+                if(uncached == null) uncached = create(upstream);
+                current = uncached;
             }
+
+            return current.open(dataSpec);
+        }
+
+        private DataSource create(DataSource.Factory factory) {
+            DataSource source = factory.createDataSource();
+            for(TransferListener transferListener : transferListeners) source.addTransferListener(transferListener);
+            return source;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return current.read(buffer, offset, readLength);
+        }
+
+        @Override
+        public Uri getUri() {
+            return current != null ? current.getUri() : null;
         }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return current != null ? current.getResponseHeaders() : Collections.emptyMap();
+        }
+
+        @Override
+        public void close() throws IOException {
+            DataSource source = current;
+            current = null;
+            if(source != null) source.close();
+        }
+
     }
 
 }
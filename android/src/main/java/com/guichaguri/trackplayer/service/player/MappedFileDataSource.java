@@ -0,0 +1,215 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.RawResourceDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.guichaguri.trackplayer.service.Utils;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads local files, content, assets and raw resources through a memory mapping, so reads and seeks are
+ * served from the page cache without a system call or an extra copy each.
+ *
+ * The mapping outlives the file descriptor, which is closed right after mapping, and is reused while the same
+ * uri is opened again, as the player does on every seek. Compressed assets, files over 2GB and other schemes
+ * are read by the fallback source instead.
+ * @author Drazail
+ */
+public class MappedFileDataSource extends BaseDataSource {
+
+    private final Context context;
+    private final DataSource fallback;
+
+    private Uri mappedUri;
+    private ByteBuffer mapped;
+
+    // The source being read, and the mapping view it reads from when it's this one
+    private DataSource current;
+    private ByteBuffer data;
+    private long bytesRemaining;
+    private boolean opened = false;
+
+    public MappedFileDataSource(Context context, DataSource fallback) {
+        super(false);
+        this.context = context.getApplicationContext();
+        this.fallback = fallback;
+    }
+
+    /**
+     * Creates a factory of mapped sources, each load gets its own source and fallback
+     */
+    public static DataSource.Factory factory(Context context, DataSource.Factory fallback) {
+        return () -> new MappedFileDataSource(context, fallback.createDataSource());
+    }
+
+    @Override
+    public void addTransferListener(TransferListener listener) {
+        super.addTransferListener(listener);
+        fallback.addTransferListener(listener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        Uri uri = dataSpec.uri;
+
+        if(!uri.equals(mappedUri)) {
+            mapped = map(uri);
+            mappedUri = uri;
+        }
+
+        if(mapped == null) {
+            current = fallback;
+            return fallback.open(dataSpec);
+        }
+
+        transferInitializing(dataSpec);
+
+        if(dataSpec.position > mapped.capacity()) {
+            throw new DataSourceException(DataSourceException.POSITION_OUT_OF_RANGE);
+        }
+
+        data = mapped.duplicate();
+        data.position((int)dataSpec.position);
+
+        bytesRemaining = data.remaining();
+        if(dataSpec.length != C.LENGTH_UNSET) bytesRemaining = Math.min(bytesRemaining, dataSpec.length);
+
+        current = this;
+        opened = true;
+        transferStarted(dataSpec);
+
+        return bytesRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if(current != this) return fallback.read(buffer, offset, readLength);
+
+        if(readLength == 0) return 0;
+        if(bytesRemaining == 0) return C.RESULT_END_OF_INPUT;
+
+        int length = (int)Math.min(readLength, bytesRemaining);
+        data.get(buffer, offset, length);
+
+        bytesRemaining -= length;
+        bytesTransferred(length);
+        return length;
+    }
+
+    @Override
+    public Uri getUri() {
+        if(current == null) return null;
+        return current == this ? mappedUri : fallback.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return current == fallback ? fallback.getResponseHeaders() : Collections.emptyMap();
+    }
+
+    @Override
+    public void close() throws IOException {
+        DataSource source = current;
+        current = null;
+        data = null;
+
+        if(source == fallback) {
+            fallback.close();
+        } else if(opened) {
+            opened = false;
+            transferEnded();
+        }
+    }
+
+    /**
+     * Maps the whole file, or the section of the file backing the asset
+     * @return The mapping, or null when the uri can't be mapped
+     */
+    private ByteBuffer map(Uri uri) throws IOException {
+        String scheme = uri.getScheme();
+
+        if(scheme == null || ContentResolver.SCHEME_FILE.equals(scheme)) {
+            try(RandomAccessFile file = new RandomAccessFile(uri.getPath(), "r")) {
+                return map(file.getChannel(), 0, file.length());
+            }
+        }
+
+        AssetFileDescriptor fd = openFd(uri, scheme);
+        if(fd == null) return null;
+
+        try(FileInputStream in = fd.createInputStream()) {
+            FileChannel channel = in.getChannel();
+            long length = fd.getLength();
+
+            if(length == AssetFileDescriptor.UNKNOWN_LENGTH) length = channel.size() - fd.getStartOffset();
+
+            return map(channel, fd.getStartOffset(), length);
+        } catch(IOException ex) {
+            // Pipes and sockets, such as the ones of streaming providers, can't be mapped
+            Log.d(Utils.LOG, "Couldn't map " + uri + ", reading it as a stream", ex);
+            return null;
+        } finally {
+            // Closing it again after the stream is a no-op
+            fd.close();
+        }
+    }
+
+    private ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        // A single buffer can't address more than 2GB
+        if(length > Integer.MAX_VALUE) return null;
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private AssetFileDescriptor openFd(Uri uri, String scheme) throws FileNotFoundException {
+        switch(scheme) {
+            case ContentResolver.SCHEME_CONTENT:
+                return context.getContentResolver().openAssetFileDescriptor(uri, "r");
+
+            case "asset":
+                String path = uri.getPath();
+                if(path.startsWith("/android_asset/")) {
+                    path = path.substring(15);
+                } else if(path.startsWith("/")) {
+                    path = path.substring(1);
+                }
+
+                try {
+                    return context.getAssets().openFd(path);
+                } catch(IOException ex) {
+                    // The asset is compressed, the fallback source inflates it
+                    return null;
+                }
+
+            case RawResourceDataSource.RAW_RESOURCE_SCHEME:
+                try {
+                    // Returns null when the resource is compressed
+                    return context.getResources().openRawResourceFd(Integer.parseInt(uri.getLastPathSegment()));
+                } catch(NumberFormatException | Resources.NotFoundException ex) {
+                    return null;
+                }
+
+            default:
+                return null;
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.guichaguri.trackplayer.service.Utils;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the bytes read from the network and from the cache, per track and for the whole session.
+ *
+ * The listeners are called from the loader threads for every chunk read, so they only update counters.
+ * @author Drazail
+ */
+public class NetworkStats {
+
+    private static final int MAX_TRACKS = 100;
+
+    private final Counters session = new Counters();
+
+    // The most recently used tracks, the oldest ones are forgotten
+    private final Map<String, TrackStats> tracks = new LinkedHashMap<String, TrackStats>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TrackStats> eldest) {
+            return size() > MAX_TRACKS;
+        }
+    };
+
+    /**
+     * Gets the listener that counts the transfers of a track
+     */
+    public synchronized TrackStats forKey(String key) {
+        TrackStats stats = tracks.get(key);
+
+        if(stats == null) {
+            stats = new TrackStats(key);
+            tracks.put(key, stats);
+        }
+
+        return stats;
+    }
+
+    public Bundle getSessionStats() {
+        return session.toBundle();
+    }
+
+    public List<Bundle> getTrackStats() {
+        List<TrackStats> list;
+
+        synchronized(this) {
+            list = new ArrayList<>(tracks.values());
+        }
+
+        List<Bundle> bundles = new ArrayList<>(list.size());
+
+        for(TrackStats stats : list) {
+            Bundle bundle = stats.counters.toBundle();
+            bundle.putString("key", stats.key);
+            bundles.add(bundle);
+        }
+
+        return bundles;
+    }
+
+    private static class Counters {
+
+        private long networkBytes = 0;
+        private long cacheBytes = 0;
+        private long transfers = 0;
+        private long timeToFirstByte = 0; // Sum of every transfer, in milliseconds
+        private long transferTime = 0; // Sum of every transfer, in milliseconds
+
+        private synchronized void addTransfer(long bytes, long firstByte, long time) {
+            networkBytes += bytes;
+            transfers++;
+            timeToFirstByte += firstByte;
+            transferTime += time;
+        }
+
+        private synchronized void addCacheBytes(long bytes) {
+            cacheBytes += bytes;
+        }
+
+        private synchronized Bundle toBundle() {
+            long total = networkBytes + cacheBytes;
+
+            Bundle bundle = new Bundle();
+            bundle.putDouble("networkBytes", networkBytes);
+            bundle.putDouble("cacheBytes", cacheBytes);
+            bundle.putDouble("cacheRatio", total == 0 ? 0 : (double)cacheBytes / total);
+            bundle.putDouble("transfers", transfers);
+            bundle.putDouble("timeToFirstByte", transfers == 0 ? -1 : Utils.toSeconds(timeToFirstByte / transfers));
+            bundle.putDouble("throughput", transferTime == 0 ? -1 : networkBytes * 1000D / transferTime);
+            return bundle;
+        }
+
+    }
+
+    private static class Transfer {
+        private long initialized;
+        private long firstByte = -1;
+        private long bytes = 0;
+    }
+
+    /**
+     * Listens to the network and cache reads of a single track
+     */
+    public class TrackStats implements TransferListener, CacheDataSource.EventListener {
+
+        private final String key;
+        private final Counters counters = new Counters();
+
+        // The running network transfers, one per data source
+        private final Map<DataSource, Transfer> transfers = new IdentityHashMap<>();
+
+        private TrackStats(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            if(!isNetwork) return;
+
+            Transfer transfer = new Transfer();
+            transfer.initialized = SystemClock.elapsedRealtime();
+
+            synchronized(this) {
+                transfers.put(source, transfer);
+            }
+        }
+
+        @Override
+        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            // The transfer is timed from its initialization, so the connection is counted
+        }
+
+        @Override
+        public synchronized void onBytesTransferred(DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+            Transfer transfer = transfers.get(source);
+            if(transfer == null) return;
+
+            if(transfer.firstByte == -1) transfer.firstByte = SystemClock.elapsedRealtime();
+            transfer.bytes += bytesTransferred;
+        }
+
+        @Override
+        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            Transfer transfer;
+
+            synchronized(this) {
+                transfer = transfers.remove(source);
+            }
+
+            if(transfer == null || transfer.firstByte == -1) return;
+
+            long firstByte = transfer.firstByte - transfer.initialized;
+            long time = SystemClock.elapsedRealtime() - transfer.initialized;
+
+            counters.addTransfer(transfer.bytes, firstByte, time);
+            session.addTransfer(transfer.bytes, firstByte, time);
+        }
+
+        @Override
+        public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+            counters.addCacheBytes(cachedBytesRead);
+            session.addCacheBytes(cachedBytesRead);
+        }
+
+        @Override
+        public void onCacheIgnored(int reason) {
+            // The reads that skip the cache are already counted as network transfers
+        }
+
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.PriorityDataSource;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.http.HttpStack;
+import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.models.TrackType;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the beginning of the upcoming tracks, so skipping to them starts from the cache.
+ *
+ * Prefetching has a lower priority than the playback, so it pauses between reads while the player is loading.
+ * @author Drazail
+ */
+public class Prefetcher {
+
+    public interface Filter {
+        /**
+         * Whether the track is already cached, so it doesn't need to be prefetched
+         */
+        boolean isCached(Track track);
+    }
+
+    private final Context context;
+    private final Cache cache;
+    private final PriorityTaskManager priorityTaskManager;
+    private final NetworkStats networkStats;
+    private final CacheKeyNormalizer cacheKeys;
+    private final HttpStack http;
+    private final Filter cached;
+    private final ThreadPoolExecutor executor;
+
+    // Cancellation flags of the running tasks, by cache key
+    private final Map<String, AtomicBoolean> tasks = new ConcurrentHashMap<>();
+
+    private int tracks = 0;
+    private long bytes = 0;
+    private volatile long bytesPerSecond = 0;
+
+    public Prefetcher(Context context, Cache cache, PriorityTaskManager priorityTaskManager,
+                      NetworkStats networkStats, CacheKeyNormalizer cacheKeys, HttpStack http, Filter cached) {
+        this.context = context;
+        this.cache = cache;
+        this.priorityTaskManager = priorityTaskManager;
+        this.networkStats = networkStats;
+        this.cacheKeys = cacheKeys;
+        this.http = http;
+        this.cached = cached;
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Updates the budget
+     * @param tracks How many upcoming tracks should be prefetched
+     * @param bytes How many bytes of each track should be prefetched
+     * @param concurrency How many tracks can be prefetched at the same time
+     * @param bytesPerSecond The bandwidth shared by all prefetches, or 0 when unlimited
+     */
+    public void configure(int tracks, long bytes, int concurrency, long bytesPerSecond) {
+        concurrency = Math.max(concurrency, 1);
+
+        this.tracks = tracks;
+        this.bytes = bytes;
+        this.bytesPerSecond = bytesPerSecond / concurrency;
+
+        // The maximum pool size can't be lower than the core size
+        if(concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    /**
+     * Prefetches the tracks after the current one, cancelling the ones that aren't upcoming anymore
+     */
+    public void update(List<Track> queue, int index) {
+        Set<String> upcoming = new HashSet<>();
+
+        for(int i = index + 1; i < queue.size() && upcoming.size() < tracks; i++) {
+            Track track = queue.get(i);
+
+            // Only progressive remote tracks are prefetched, streams are split in too many segments
+            if(track.resourceId != 0 || track.type != TrackType.DEFAULT || Utils.isLocal(track.uri)) continue;
+
+            // Downloaded tracks are read from the persistent tier, and may be played offline
+            if(cached.isCached(track)) continue;
+
+            String key = cacheKeys.getKey(track);
+            if(!upcoming.add(key) || tasks.containsKey(key)) continue;
+
+            AtomicBoolean canceled = new AtomicBoolean(false);
+            tasks.put(key, canceled);
+
+            long length = bytes;
+            executor.execute(() -> prefetch(track, key, length, canceled));
+        }
+
+        Iterator<Map.Entry<String, AtomicBoolean>> it = tasks.entrySet().iterator();
+
+        while(it.hasNext()) {
+            Map.Entry<String, AtomicBoolean> task = it.next();
+
+            if(!upcoming.contains(task.getKey())) {
+                task.getValue().set(true);
+                it.remove();
+            }
+        }
+    }
+
+    public void release() {
+        for(AtomicBoolean canceled : tasks.values()) canceled.set(true);
+        tasks.clear();
+
+        executor.shutdownNow();
+    }
+
+    private void prefetch(Track track, String key, long length, AtomicBoolean canceled) {
+        if(canceled.get()) return;
+
+        DataSpec spec = new DataSpec(track.uri, 0, length, key);
+        NetworkStats.TrackStats stats = networkStats.forKey(key);
+        DataSource upstream = track.createHttpDataSourceFactory(context, http, stats).createDataSource();
+
+        // Every read waits while the player is loading, not only the first one
+        CacheDataSource source = new CacheDataSource(cache,
+                new PriorityDataSource(upstream, priorityTaskManager, C.PRIORITY_DOWNLOAD));
+
+        long start = SystemClock.elapsedRealtime();
+        AtomicLong downloaded = new AtomicLong(0); // The bytes fetched by this task, without the ones already cached
+
+        try {
+            CacheUtil.cache(spec, cache, null, source, new byte[CacheUtil.DEFAULT_BUFFER_SIZE_BYTES],
+                    priorityTaskManager, C.PRIORITY_DOWNLOAD,
+                    (requestLength, bytesCached, newBytesCached) -> throttle(start, downloaded.addAndGet(newBytesCached)),
+                    canceled, false);
+
+            Log.d(Utils.LOG, "Prefetched " + key + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't prefetch " + key, ex);
+        } finally {
+            tasks.remove(key, canceled);
+        }
+    }
+
+    /**
+     * Sleeps the prefetch thread when it downloads faster than the bandwidth budget
+     * @param downloaded The bytes downloaded since the start of the task
+     */
+    private void throttle(long start, long downloaded) {
+        long bytesPerSecond = this.bytesPerSecond;
+        if(bytesPerSecond <= 0) return;
+
+        long expected = downloaded * 1000 / bytesPerSecond;
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        if(expected > elapsed) {
+            try {
+                Thread.sleep(expected - elapsed);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
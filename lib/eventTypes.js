@@ -21,7 +21,12 @@ const TrackPlayerEvents = {
   PLAYBACK_STATE: 'playback-state',
   PLAYBACK_TRACK_CHANGED: 'playback-track-changed',
   PLAYBACK_QUEUE_ENDED: 'playback-queue-ended',
-  PLAYBACK_ERROR: 'playback-error'
+  PLAYBACK_ERROR: 'playback-error',
+  PLAYBACK_CACHED: 'playback-cached',
+  NETWORK_STATS: 'network-stats',
+  DOWNLOAD_STATE: 'download-state',
+  DOWNLOAD_PROGRESS: 'download-progress',
+  BROWSE_LOAD_CHILDREN: 'browse-load-children'
 }
 
 module.exports = TrackPlayerEvents
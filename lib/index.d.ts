@@ -1,5 +1,5 @@
-import { MetadataOptions, PlayerOptions, Event, Track, State, TrackMetadata } from './interfaces';
-declare function setupPlayer(options?: PlayerOptions): Promise<void>;
+import { MetadataOptions, PlayerOptions, SetupResult, Event, Track, State, TrackMetadata, BrowseItem, Download, CacheStatus, CacheSize, CacheStats, NetworkStats } from './interfaces';
+declare function setupPlayer(options?: PlayerOptions): Promise<SetupResult | void>;
 declare function destroy(): any;
 declare function updateOptions(options?: MetadataOptions): Promise<void>;
 declare type ServiceHandler = () => Promise<void>;
@@ -12,6 +12,7 @@ declare function removeByIndex(tracks: Track | Track[]): Promise<void>;
 declare function updateTrack(id: String, track: Track): Promise<void>;
 declare function updateTrackbyIndex(index: number, track: Track): Promise<void>;
 declare function removeUpcomingTracks(): Promise<void>;
+declare function restoreQueue(): Promise<string | null>;
 declare function shuffle(): Promise<void>;
 declare function shuffleFromIndex(index: number): Promise<void>;
 declare function move(index: number, newIndex: number): Promise<void>;
@@ -40,6 +41,22 @@ declare function getPosition(): Promise<number>;
 declare function getState(): Promise<State>;
 declare function setRepeatMode(mode: number): Promise<void>;
 declare function getRepeatMode(): Promise<State>;
+declare function setBrowseChildren(parentId: string, items: BrowseItem[]): Promise<void>;
+declare function clearBrowseCache(): Promise<void>;
+declare function setPinnedCacheKeys(keys: string[]): Promise<void>;
+declare function getCacheStatus(keys: string[]): Promise<CacheStatus[]>;
+declare function getCacheSize(): Promise<CacheSize>;
+declare function listCachedKeys(offset?: number, limit?: number): Promise<string[]>;
+declare function removeFromCache(keys: string[]): Promise<void>;
+declare function getCacheStats(): Promise<CacheStats>;
+declare function getNetworkStats(): Promise<NetworkStats>;
+declare function promoteToPersistentCache(keys: string[]): Promise<string[]>;
+declare function download(tracks: Track | Track[], priority?: number): Promise<void>;
+declare function pauseDownloads(ids: string[]): Promise<void>;
+declare function resumeDownloads(ids: string[]): Promise<void>;
+declare function removeDownloads(ids: string[]): Promise<void>;
+declare function setDownloadPriority(id: string, priority: number): Promise<void>;
+declare function getDownloads(): Promise<Download[]>;
 
 export * from './hooks';
 export * from './interfaces';
@@ -53,6 +70,7 @@ declare const _default: {
     remove: typeof remove;
     updateTrack: typeof updateTrack;
     removeUpcomingTracks: typeof removeUpcomingTracks;
+    restoreQueue: typeof restoreQueue;
     skip: typeof skip;
     skipToNext: typeof skipToNext;
     skipToPrevious: typeof skipToPrevious;
@@ -83,5 +101,21 @@ declare const _default: {
     updateMetadataForTrackByIndex: typeof updateMetadataForTrackByIndex;
     setRepeatMode: typeof setRepeatMode;
     getRepeatMode: typeof getRepeatMode;
+    setBrowseChildren: typeof setBrowseChildren;
+    clearBrowseCache: typeof clearBrowseCache;
+    setPinnedCacheKeys: typeof setPinnedCacheKeys;
+    getCacheStatus: typeof getCacheStatus;
+    getCacheSize: typeof getCacheSize;
+    listCachedKeys: typeof listCachedKeys;
+    removeFromCache: typeof removeFromCache;
+    getCacheStats: typeof getCacheStats;
+    getNetworkStats: typeof getNetworkStats;
+    promoteToPersistentCache: typeof promoteToPersistentCache;
+    download: typeof download;
+    pauseDownloads: typeof pauseDownloads;
+    resumeDownloads: typeof resumeDownloads;
+    removeDownloads: typeof removeDownloads;
+    setDownloadPriority: typeof setDownloadPriority;
+    getDownloads: typeof getDownloads;
 };
 export default _default;
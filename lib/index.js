@@ -326,6 +326,14 @@ function removeUpcomingTracks() {
     });
   });
 }
+
+function restoreQueue() {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.restoreQueue()];
+    });
+  });
+}
 function skip(trackId) {
   return __awaiter(this, void 0, void 0, function() {
     return __generator(this, function(_a) {
@@ -509,6 +517,168 @@ function getRepeatMode() {
   });
 }
 
+// MARK: - Browse API
+function setBrowseChildren(parentId, items) {
+  return __awaiter(this, void 0, void 0, function() {
+    var i;
+    return __generator(this, function(_a) {
+      for (i = 0; i < items.length; i++) {
+        // Clone the object before modifying it
+        items[i] = __assign({}, items[i]);
+        // Resolve the artwork and cast ID's into strings
+        items[i].artwork = resolveImportedPath(items[i].artwork);
+        items[i].id = "" + items[i].id;
+      }
+      return [2 /*return*/, TrackPlayer.setBrowseChildren(parentId, items)];
+    });
+  });
+}
+
+function clearBrowseCache() {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.clearBrowseCache()];
+    });
+  });
+}
+
+// MARK: - Cache API
+function setPinnedCacheKeys(keys) {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.setPinnedCacheKeys(keys)];
+    });
+  });
+}
+
+function getCacheStatus(keys) {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.getCacheStatus(keys)];
+    });
+  });
+}
+
+function getCacheSize() {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.getCacheSize()];
+    });
+  });
+}
+
+function listCachedKeys(offset, limit) {
+  if (offset === void 0) {
+    offset = 0;
+  }
+  if (limit === void 0) {
+    limit = -1;
+  }
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.listCachedKeys(offset, limit)];
+    });
+  });
+}
+
+function removeFromCache(keys) {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.removeFromCache(keys)];
+    });
+  });
+}
+
+function getCacheStats() {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.getCacheStats()];
+    });
+  });
+}
+
+function getNetworkStats() {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.getNetworkStats()];
+    });
+  });
+}
+
+function promoteToPersistentCache(keys) {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.promoteToPersistentCache(keys)];
+    });
+  });
+}
+
+// MARK: - Download API
+function download(tracks, priority) {
+  if (priority === void 0) {
+    priority = 0;
+  }
+  return __awaiter(this, void 0, void 0, function() {
+    var i;
+    return __generator(this, function(_a) {
+      if (!Array.isArray(tracks)) {
+        tracks = [tracks];
+      }
+      if (tracks.length < 1) return [2 /*return*/];
+      for (i = 0; i < tracks.length; i++) {
+        // Clone the object before modifying it
+        tracks[i] = __assign({}, tracks[i]);
+        // Resolve the URLs
+        tracks[i].url = resolveImportedPath(tracks[i].url);
+        tracks[i].artwork = resolveImportedPath(tracks[i].artwork);
+        // Cast ID's into strings
+        tracks[i].id = "" + tracks[i].id;
+      }
+      return [2 /*return*/, TrackPlayer.download(tracks, priority)];
+    });
+  });
+}
+
+function pauseDownloads(ids) {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.pauseDownloads(ids)];
+    });
+  });
+}
+
+function resumeDownloads(ids) {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.resumeDownloads(ids)];
+    });
+  });
+}
+
+function removeDownloads(ids) {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.removeDownloads(ids)];
+    });
+  });
+}
+
+function setDownloadPriority(id, priority) {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.setDownloadPriority(id, priority)];
+    });
+  });
+}
+
+function getDownloads() {
+  return __awaiter(this, void 0, void 0, function() {
+    return __generator(this, function(_a) {
+      return [2 /*return*/, TrackPlayer.getDownloads()];
+    });
+  });
+}
+
 __export(require("./hooks"));
 __export(require("./interfaces"));
 exports.default = {
@@ -523,6 +693,7 @@ exports.default = {
   remove: remove,
   updateTrack: updateTrack,
   removeUpcomingTracks: removeUpcomingTracks,
+  restoreQueue: restoreQueue,
   skip: skip,
   skipToNext: skipToNext,
   skipToPrevious: skipToPrevious,
@@ -556,5 +727,27 @@ exports.default = {
   skipbyIndex: skipbyIndex,
   updateMetadataForTrackByIndex: updateMetadataForTrackByIndex,
   setRepeatMode: setRepeatMode,
-  getRepeatMode: getRepeatMode
+  getRepeatMode: getRepeatMode,
+
+  // MARK: - Browse API
+  setBrowseChildren: setBrowseChildren,
+  clearBrowseCache: clearBrowseCache,
+
+  // MARK: - Cache API
+  setPinnedCacheKeys: setPinnedCacheKeys,
+  getCacheStatus: getCacheStatus,
+  getCacheSize: getCacheSize,
+  listCachedKeys: listCachedKeys,
+  removeFromCache: removeFromCache,
+  getCacheStats: getCacheStats,
+  getNetworkStats: getNetworkStats,
+  promoteToPersistentCache: promoteToPersistentCache,
+
+  // MARK: - Download API
+  download: download,
+  pauseDownloads: pauseDownloads,
+  resumeDownloads: resumeDownloads,
+  removeDownloads: removeDownloads,
+  setDownloadPriority: setDownloadPriority,
+  getDownloads: getDownloads
 };
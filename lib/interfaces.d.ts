@@ -31,11 +31,32 @@ export interface PlayerOptions {
     maxBuffer?: number;
     playBuffer?: number;
     maxCacheSize?: number;
+    persistQueue?: boolean;
+    evictWholeTracks?: boolean;
+    cachePolicy?: CachePolicy;
+    headCacheSize?: number;
+    cacheTtl?: number;
+    minCacheSize?: number;
+    minFreeDiskSpace?: number;
+    cacheKeyIgnoredParams?: string[];
+    retryPolicy?: RetryPolicy;
+    networkStatsInterval?: number;
+    prefetchTracks?: number;
+    prefetchSize?: number;
+    prefetchConcurrency?: number;
+    prefetchBandwidth?: number;
+    maxParallelDownloads?: number;
+    persistentCache?: boolean;
+    maxPersistentCacheSize?: number;
     iosCategory?: IOSCategory;
     iosCategoryMode?: IOSCategoryMode;
     iosCategoryOptions?: IOSCategoryOptions[];
     waitForBuffer?: boolean;
 }
+export interface SetupResult {
+    timeToReady: number;
+    player: 'created' | 'prewarmed' | 'restored';
+}
 export declare enum RatingType {
     Heart,
     ThumbsUpDown,
@@ -78,6 +99,8 @@ export interface MetadataOptions {
     capabilities?: Capability[];
     notificationCapabilities?: Capability[];
     compactCapabilities?: Capability[];
+    nativeCapabilities?: Capability[];
+    resumeOnMediaButton?: boolean;
     icon?: ResourceObject;
     playIcon?: ResourceObject;
     pauseIcon?: ResourceObject;
@@ -91,6 +114,10 @@ export interface MetadataOptions {
 export declare enum Event {
     PlaybackState = "playback-state",
     PlaybackError = "playback-error",
+    PlaybackCached = "playback-cached",
+    NetworkStats = "network-stats",
+    DownloadState = "download-state",
+    DownloadProgress = "download-progress",
     PlaybackQueueEnded = "playback-queue-ended",
     PlaybackTrackChanged = "playback-track-changed",
     RemotePlay = "remote-play",
@@ -108,7 +135,8 @@ export declare enum Event {
     RemoteDuck = "remote-duck",
     RemoteLike = "remote-like",
     RemoteDislike = "remote-dislike",
-    RemoteBookmark = "remote-bookmark"
+    RemoteBookmark = "remote-bookmark",
+    BrowseLoadChildren = "browse-load-children"
 }
 export declare enum TrackType {
     Default = "default",
@@ -147,6 +175,72 @@ export interface Track extends TrackMetadata {
     type?: TrackType;
     userAgent?: string;
     contentType?: string;
+    cacheTtl?: number;
+    retryPolicy?: RetryPolicy;
     pitchAlgorithm?: PitchAlgorithm;
     [key: string]: any;
 }
+export interface RetryPolicy {
+    maxRetries?: number;
+    retryDelay?: number;
+    maxRetryDelay?: number;
+    retryOnTimeout?: boolean;
+    retryStatusCodes?: number[];
+    blacklistDuration?: number;
+}
+export interface CacheStatus {
+    key: string;
+    bytes: number;
+    contentLength: number;
+    percent: number;
+    complete: boolean;
+    persistent: boolean;
+}
+export interface CacheSize {
+    size: number;
+    maxSize: number;
+    limit: number;
+    keys: number;
+}
+export declare type CachePolicy = 'lru' | 'lfu';
+export interface CacheStats {
+    policy: CachePolicy;
+    requests: number;
+    hits: number;
+    hitRatio: number;
+    evictions: number;
+    evictedBytes: number;
+}
+export interface NetworkCounters {
+    networkBytes: number;
+    cacheBytes: number;
+    cacheRatio: number;
+    transfers: number;
+    timeToFirstByte: number;
+    throughput: number;
+}
+export interface TrackNetworkStats extends NetworkCounters {
+    key: string;
+}
+export interface NetworkStats extends NetworkCounters {
+    tracks: TrackNetworkStats[];
+}
+export declare type DownloadState = 'queued' | 'downloading' | 'paused' | 'completed' | 'failed' | 'removing' | 'restarting' | 'removed';
+export interface Download {
+    id: string;
+    state: DownloadState;
+    priority: number;
+    bytesDownloaded: number;
+    contentLength: number;
+    percent: number;
+    track?: Track;
+}
+export interface BrowseItem {
+    id: string;
+    title: string;
+    subtitle?: string;
+    description?: string;
+    artwork?: string | ResourceObject;
+    playable?: boolean;
+    browsable?: boolean;
+}
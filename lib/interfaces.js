@@ -64,6 +64,10 @@ var Event;
 (function (Event) {
     Event["PlaybackState"] = "playback-state";
     Event["PlaybackError"] = "playback-error";
+    Event["PlaybackCached"] = "playback-cached";
+    Event["NetworkStats"] = "network-stats";
+    Event["DownloadState"] = "download-state";
+    Event["DownloadProgress"] = "download-progress";
     Event["PlaybackQueueEnded"] = "playback-queue-ended";
     Event["PlaybackTrackChanged"] = "playback-track-changed";
     Event["RemotePlay"] = "remote-play";
@@ -82,6 +86,7 @@ var Event;
     Event["RemoteLike"] = "remote-like";
     Event["RemoteDislike"] = "remote-dislike";
     Event["RemoteBookmark"] = "remote-bookmark";
+    Event["BrowseLoadChildren"] = "browse-load-children";
 })(Event = exports.Event || (exports.Event = {}));
 var TrackType;
 (function (TrackType) {